@@ -0,0 +1,99 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.io.PennTreebankReader;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The fixed slice of the treebank every benchmark runs on, read once per JVM: the training sections (02-21), and the
+ * first SENTENCES_PER_LENGTH sentences of section 22 of each length, so a parsing benchmark at a given length always
+ * parses the same sentences.
+ *
+ * The treebank directory is the system property bench.wsj, by default ../wsj (or wsj, when run from the repository
+ * root).  A TreebankCache in it is used as usual.  Setting bench.model to a file written with -saveModel makes the
+ * parsing benchmarks load that model instead of training one.
+ *
+ * @author Keith Stone
+ */
+public class BenchmarkData {
+    static final int SENTENCES_PER_LENGTH = 5;
+
+    private static List<Tree<String>> trainTrees;
+    private static Map<Integer, List<List<String>>> sentencesByLength;
+
+    public static synchronized List<Tree<String>> getTrainTrees() {
+        if (trainTrees == null) {
+            trainTrees = readTrees(200, 2199);
+        }
+        return trainTrees;
+    }
+
+    /**
+     * The test sentences of exactly the given length.
+     */
+    public static synchronized List<List<String>> getSentences(int length) {
+        if (sentencesByLength == null) {
+            sentencesByLength = new HashMap<Integer, List<List<String>>>();
+            for (Tree<String> tree : readTrees(2200, 2299)) {
+                List<String> sentence = tree.getYield();
+                List<List<String>> sentences = sentencesByLength.get(sentence.size());
+                if (sentences == null) {
+                    sentences = new ArrayList<List<String>>();
+                    sentencesByLength.put(sentence.size(), sentences);
+                }
+                if (sentences.size() < SENTENCES_PER_LENGTH) sentences.add(sentence);
+            }
+        }
+        List<List<String>> sentences = sentencesByLength.get(length);
+        if (sentences == null) throw new IllegalArgumentException("No test sentences of length " + length);
+        return sentences;
+    }
+
+    /**
+     * Reads a setting like "v1h2" (vertical order 1, horizontal order 2); "inf" stands for an unbounded order.
+     */
+    public static PCFGParserTester.TreeAnnotations.MarkovContext parseMarkov(String setting) {
+        int h = setting.indexOf('h');
+        if (!setting.startsWith("v") || h < 0) throw new IllegalArgumentException("Bad markovization " + setting);
+        return new PCFGParserTester.TreeAnnotations.MarkovContext(parseOrder(setting.substring(1, h)), parseOrder(setting.substring(h + 1)));
+    }
+
+    private static int parseOrder(String order) {
+        return order.equalsIgnoreCase("inf") ? Integer.MAX_VALUE : Integer.parseInt(order);
+    }
+
+    /**
+     * A trained (or, with bench.model, loaded) parser of the given kind: "cky" for the top-down CKYParser or
+     * "bottomUp" for BottomUpCKYParser.
+     */
+    public static CKYParser newParser(String kind, String markov) throws IOException {
+        String modelPath = System.getProperty("bench.model");
+        ParserModel model = modelPath == null ? null : ParserModel.load(modelPath);
+        if (kind.equals("cky")) {
+            return model != null ? new CKYParser(model) : new CKYParser(getTrainTrees(), parseMarkov(markov));
+        } else if (kind.equals("bottomUp")) {
+            return model != null ? new BottomUpCKYParser(model, 0.0) : new BottomUpCKYParser(getTrainTrees(), parseMarkov(markov));
+        }
+        throw new IllegalArgumentException("Unknown parser " + kind);
+    }
+
+    private static String getTreebankPath() {
+        String path = System.getProperty("bench.wsj");
+        if (path != null) return path;
+        return new File("../wsj").isDirectory() ? "../wsj" : "wsj";
+    }
+
+    private static List<Tree<String>> readTrees(int low, int high) {
+        Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
+        List<Tree<String>> trees = new ArrayList<Tree<String>>();
+        for (Tree<String> tree : PennTreebankReader.readTrees(getTreebankPath(), low, high)) {
+            trees.add(treeTransformer.transformTree(tree));
+        }
+        if (trees.isEmpty()) throw new IllegalStateException("No trees found under " + new File(getTreebankPath()).getAbsolutePath());
+        return trees;
+    }
+}
@@ -0,0 +1,26 @@
+package edu.berkeley.nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the given command line, writing results as JSON to jmh-result.json unless -rf or -rff say otherwise,
+ * so runs can be kept and compared between parser changes.
+ *
+ * @author Keith Stone
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<String>(Arrays.asList(args));
+        if (!argList.contains("-rf")) {
+            argList.add(0, "-rf");
+            argList.add(1, "json");
+        }
+        if (!argList.contains("-rff")) {
+            argList.add(0, "-rff");
+            argList.add(1, "jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(argList.toArray(new String[argList.size()]));
+    }
+}
@@ -0,0 +1,70 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build a parser's grammar from the training trees, stage by stage: annotating (binarizing and markovizing)
+ * the trees, counting them into a Grammar, and taking the UnaryClosure of that grammar, plus the optional
+ * GrammarMinimizer pass over the Grammar.  Each stage starts from the output of the one before, prepared once per
+ * trial.
+ *
+ * @author Keith Stone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class GrammarBenchmark {
+    @Param({"v1h1", "v1h2", "v1hinf", "v2h2"})
+    String markov;
+
+    List<Tree<String>>       trainTrees;
+    List<Tree<String>>       annotatedTrees;
+    PCFGParserTester.Grammar grammar;
+    Set<String>              fixedStates;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trainTrees = BenchmarkData.getTrainTrees();
+        annotatedTrees = annotateTrees();
+        grammar = new PCFGParserTester.Grammar(annotatedTrees);
+        fixedStates = new HashSet<String>(new PCFGParserTester.Lexicon(annotatedTrees).getAllTags());
+        for (Tree<String> tree : annotatedTrees) {
+            fixedStates.add(tree.getLabel());
+        }
+    }
+
+    @Benchmark
+    public List<Tree<String>> annotateTrees() {
+        PCFGParserTester.TreeAnnotations.MarkovContext context = BenchmarkData.parseMarkov(markov);
+        List<Tree<String>> annotated = new ArrayList<Tree<String>>(trainTrees.size());
+        for (Tree<String> tree : trainTrees) {
+            annotated.add(PCFGParserTester.TreeAnnotations.annotateTree(tree, context));
+        }
+        return annotated;
+    }
+
+    @Benchmark
+    public PCFGParserTester.Grammar buildGrammar() {
+        return new PCFGParserTester.Grammar(annotatedTrees);
+    }
+
+    @Benchmark
+    public PCFGParserTester.UnaryClosure buildUnaryClosure() {
+        return new PCFGParserTester.UnaryClosure(grammar);
+    }
+
+    @Benchmark
+    public GrammarMinimizer minimizeGrammar() {
+        return new GrammarMinimizer(grammar, fixedStates, 0.0);
+    }
+}
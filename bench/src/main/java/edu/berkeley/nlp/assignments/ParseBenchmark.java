@@ -0,0 +1,50 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for CKYParser.getBestParse() on test sentences of a fixed length.  One operation parses each of the
+ * BenchmarkData.SENTENCES_PER_LENGTH sentences of that length once, so scores are per sentence.
+ *
+ * @author Keith Stone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ParseBenchmark {
+    @Param({"10", "20", "30", "40"})
+    int length;
+
+    @Param({"cky", "bottomUp"})
+    String parser;
+
+    @Param({"v1h2"})
+    String markov;
+
+    CKYParser          ckyParser;
+    List<List<String>> sentences;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sentences = BenchmarkData.getSentences(length);
+        ckyParser = BenchmarkData.newParser(parser, markov);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.SENTENCES_PER_LENGTH)
+    public void getBestParse(Blackhole blackhole) {
+        for (List<String> sentence : sentences) {
+            Tree<String> parse = ckyParser.getBestParse(sentence);
+            blackhole.consume(parse);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.GeneralPriorityQueue;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agenda-based A* parser over the compiled grammar.
+ *
+ * Edges are (span, state) pairs in either layer of the chart: the binary layer (or the tag layer of a single word) and
+ * the unary layer above it, exactly as in BottomUpCKYParser.  An edge sits on the agenda with priority equal to its best
+ * inside score so far plus an estimate of its outside score, and is finished when popped.  Finished unary-layer edges
+ * combine with finished adjacent edges through the binary rules, finished binary-layer edges go through the unary
+ * closure, and the parse is complete when a root state over the whole sentence is popped.
+ *
+ * The outside estimate of an edge is the smaller of two admissible bounds:
+ *
+ * - the SX context summary, precomputed from the grammar alone: for each state and number of words outside the span,
+ *   the best outside score any context of that size could give, with every sibling scored by the best inside score of
+ *   its length (estimates are computed up to the longest sentence seen so far);
+ * - the Viterbi outside score, over this sentence, of the edge's projection in a coarser grammar: annotations are
+ *   dropped and intermediate symbols keep only their last siblings (as many as still halves the number of states),
+ *   and every projected rule is scored with its best fine rule.
+ *
+ * Neither ever underestimates, and a parent's priority never exceeds its children's, so every edge is popped with its
+ * Viterbi inside score and the parse is the same as CKY's (up to exact ties).
+ *
+ * @author Keith Stone
+ */
+public class AStarParser extends CKYParser {
+    private static final int BINARY = ContextSummaryEstimate.BINARY;
+    private static final int UNARY  = ContextSummaryEstimate.UNARY;
+
+    private static final int MAX_PROJECTED_SIBLINGS = 2;
+
+    ContextSummaryEstimate summary;
+
+    // The projected grammar, each projected rule scored with its best fine rule
+    int      numCoarse;
+    int[]    fineToCoarse;
+    int[]    tagToCoarse;
+    boolean[] coarseRoots;
+    int[]    coarseBinaryParent, coarseBinaryLeft, coarseBinaryRight;
+    double[] coarseBinaryScore;
+    int[]    coarseByLeft, coarseByLeftStart, coarseByParent, coarseByParentStart;
+    int[]    coarseUnaryParent, coarseUnaryChild;
+    double[] coarseUnaryScore;
+
+    final AtomicLong pops      = new AtomicLong();
+    final AtomicLong sentences = new AtomicLong();
+
+    public AStarParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context) {
+        this(trainTrees, context, new TrainingOptions());
+    }
+
+    public AStarParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context, TrainingOptions options) {
+        super(trainTrees, context, options);
+        summary = new ContextSummaryEstimate(grammar, rootStates, lexicon, lexiconTags);
+        projectGrammar();
+    }
+
+    public AStarParser(ParserModel model) {
+        super(model);
+        summary = new ContextSummaryEstimate(grammar, rootStates, lexicon, lexiconTags);
+        projectGrammar();
+    }
+
+    /**
+     * Total number of edges popped from the agenda so far, over all sentences.
+     */
+    public long getPops() {
+        return pops.get();
+    }
+
+    public long getSentences() {
+        return sentences.get();
+    }
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        long t = tick();
+        int n = sentence.size();
+        double[][][] outside = summary.getEstimates(n);
+        TreeCache tc = newChart(sentence);
+        double[][][] projected = projectedOutside(sentence, tc.tags);
+        t = charge(ParserMetrics.ESTIMATE, t);
+        boolean[][][] finished = new boolean[2][n * n][];
+        GeneralPriorityQueue<Long> agenda = new GeneralPriorityQueue<Long>();
+        boolean[] isRoot = new boolean[grammar.numStates()];
+        for (int state : rootStates) {
+            if (state >= 0) isRoot[state] = true;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int c = open(tc, i, i);
+            double[] logScores = tc.tags.scores[i];
+            for (int state : tc.tags.states[i]) {
+                relax(agenda, tc, outside, projected, n, BINARY, c, i, i, state, logScores[lexiconTags[state]], TreeCache.NO_RULE, 0);
+            }
+        }
+
+        int top = tc.cell(0, n - 1);
+        int rootState = -1;
+        long popped = 0;
+        while (!agenda.isEmpty()) {
+            long edge = agenda.removeFirst();
+            popped++;
+            int state = (int) (edge % grammar.numStates());
+            int layer = (int) (edge / grammar.numStates() % 2);
+            int c     = (int) (edge / grammar.numStates() / 2);
+            int i = c / n;
+            int j = c % n;
+            if (finished[layer][c] == null) finished[layer][c] = new boolean[grammar.numStates()];
+            finished[layer][c][state] = true;
+
+            if (layer == BINARY) {
+                double inside = tc.binaryScores[c][state];
+                int end = grammar.unaryByChildStart[state + 1];
+                for (int k = grammar.unaryByChildStart[state]; k < end; k++) {
+                    int rule = grammar.unaryByChild[k];
+                    int parent = grammar.unaryParent[rule];
+                    if (finished[UNARY][c] != null && finished[UNARY][c][parent]) continue;
+                    relax(agenda, tc, outside, projected, n, UNARY, c, i, j, parent, inside + grammar.unaryScore[rule], rule, 0);
+                }
+                continue;
+            }
+
+            if (c == top && isRoot[state]) {
+                rootState = state;
+                break;
+            }
+            double inside = tc.unaryScores[c][state];
+
+            // As a left child, with a finished right sibling starting at j + 1
+            for (int k = j + 1; k < n; k++) {
+                int rightCell = tc.cell(j + 1, k);
+                boolean[] rightFinished = finished[UNARY][rightCell];
+                if (rightFinished == null) continue;
+                int parentCell = tc.cell(i, k);
+                int end = grammar.binaryByLeftStart[state + 1];
+                for (int r = grammar.binaryByLeftStart[state]; r < end; r++) {
+                    int rule = grammar.binaryByLeft[r];
+                    int right = grammar.binaryRight[rule];
+                    if (!rightFinished[right]) continue;
+                    int parent = grammar.binaryParent[rule];
+                    if (finished[BINARY][parentCell] != null && finished[BINARY][parentCell][parent]) continue;
+                    double score = grammar.binaryScore[rule] + inside + tc.unaryScores[rightCell][right];
+                    relax(agenda, tc, outside, projected, n, BINARY, parentCell, i, k, parent, score, rule, j + 1);
+                }
+            }
+
+            // As a right child, with a finished left sibling ending at i - 1
+            for (int h = 0; h < i; h++) {
+                int leftCell = tc.cell(h, i - 1);
+                boolean[] leftFinished = finished[UNARY][leftCell];
+                if (leftFinished == null) continue;
+                int parentCell = tc.cell(h, j);
+                int end = grammar.binaryByRightStart[state + 1];
+                for (int r = grammar.binaryByRightStart[state]; r < end; r++) {
+                    int rule = grammar.binaryByRight[r];
+                    int left = grammar.binaryLeft[rule];
+                    if (!leftFinished[left]) continue;
+                    int parent = grammar.binaryParent[rule];
+                    if (finished[BINARY][parentCell] != null && finished[BINARY][parentCell][parent]) continue;
+                    double score = grammar.binaryScore[rule] + tc.unaryScores[leftCell][left] + inside;
+                    relax(agenda, tc, outside, projected, n, BINARY, parentCell, h, j, parent, score, rule, i);
+                }
+            }
+        }
+        pops.addAndGet(popped);
+        sentences.incrementAndGet();
+        t = charge(ParserMetrics.CHART, t);
+        count(ParserMetrics.CELLS, tc.openCells());
+        count(ParserMetrics.RULES, tc.rulesApplied);
+
+        Tree<String> annotatedBestParse = rootState < 0 ? null : tc.buildUnaryTree(sentence, rootState);
+        t = charge(ParserMetrics.BACKTRACE, t);
+        return finishParse(sentence, annotatedBestParse, t);
+    }
+
+    private static int open(TreeCache tc, int i, int j) {
+        int c = tc.cell(i, j);
+        if (tc.unaryScores[c] == null) tc.openCell(i, j, Double.NEGATIVE_INFINITY);
+        return c;
+    }
+
+    /**
+     * Records a new derivation of an unfinished edge if it beats the best one so far, and raises the edge's priority
+     * on the agenda to match.
+     */
+    private void relax(GeneralPriorityQueue<Long> agenda, TreeCache tc, double[][][] outside, double[][][] projected, int n, int layer,
+                       int c, int i, int j, int state, double inside, int rule, int split) {
+        tc.rulesApplied++;
+        double estimate = Math.min(outside[layer][n - (j - i + 1)][state], projected[layer][c][fineToCoarse[state]]);
+        if (estimate == Double.NEGATIVE_INFINITY || inside == Double.NEGATIVE_INFINITY) return;
+        open(tc, i, j);
+        if (layer == BINARY) {
+            if (!(inside > tc.binaryScores[c][state])) return;
+            tc.binaryScores[c][state] = inside;
+            tc.binaryRules[c][state]  = rule;
+            tc.splits[c][state]       = (short) split;
+        } else {
+            if (!(inside > tc.unaryScores[c][state])) return;
+            tc.unaryScores[c][state] = inside;
+            tc.unaryRules[c][state]  = rule;
+        }
+        agenda.relaxPriority(((long) c * 2 + layer) * grammar.numStates() + state, inside + estimate);
+    }
+
+    private static double[] newScores(int numStates) {
+        double[] scores = new double[numStates];
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        return scores;
+    }
+
+    /**
+     * Projects a fine label as TreeAnnotations.projectLabel does, except that intermediate symbols keep the last
+     * siblings of their horizontal history (so @S^NP->_DT_JJ_NN becomes @NP->_JJ_NN with two siblings kept).
+     */
+    static String projectLabel(String label, int siblings) {
+        String base = PCFGParserTester.TreeAnnotations.projectLabel(label);
+        int arrow = label.indexOf("->");
+        if (!label.startsWith("@") || siblings == 0 || arrow < 0) return base;
+        String[] history = label.substring(arrow + 2).split("_", -1);
+        StringBuilder sb = new StringBuilder(base).append("->");
+        for (int k = Math.max(1, history.length - siblings); k < history.length; k++) {
+            sb.append('_').append(history[k]);
+        }
+        return sb.toString();
+    }
+
+    private void projectGrammar() {
+        // Keep as much sibling history as we can while still halving the number of states
+        for (int siblings = MAX_PROJECTED_SIBLINGS; siblings >= 0; siblings--) {
+            Indexer<String> coarseStates = new Indexer<String>();
+            fineToCoarse = new int[grammar.numStates()];
+            for (int state = 0; state < fineToCoarse.length; state++) {
+                fineToCoarse[state] = coarseStates.addAndGetIndex(projectLabel(grammar.getLabel(state), siblings));
+            }
+            numCoarse = coarseStates.size();
+            if (2 * numCoarse <= grammar.numStates()) break;
+        }
+        tagToCoarse = new int[lexicon.getTagIndexer().size()];
+        for (int tag = 0; tag < tagToCoarse.length; tag++) {
+            tagToCoarse[tag] = fineToCoarse[grammar.getState(lexicon.getTagIndexer().get(tag))];
+        }
+        coarseRoots = new boolean[numCoarse];
+        for (int state : rootStates) {
+            if (state >= 0) coarseRoots[fineToCoarse[state]] = true;
+        }
+
+        Map<Long, Double> binaryScores = new LinkedHashMap<Long, Double>();
+        for (int rule = 0; rule < grammar.binaryParent.length; rule++) {
+            long key = ((long) fineToCoarse[grammar.binaryParent[rule]] * numCoarse + fineToCoarse[grammar.binaryLeft[rule]]) * numCoarse + fineToCoarse[grammar.binaryRight[rule]];
+            Double score = binaryScores.get(key);
+            if (score == null || grammar.binaryScore[rule] > score) binaryScores.put(key, grammar.binaryScore[rule]);
+        }
+        coarseBinaryParent = new int[binaryScores.size()];
+        coarseBinaryLeft   = new int[binaryScores.size()];
+        coarseBinaryRight  = new int[binaryScores.size()];
+        coarseBinaryScore  = new double[binaryScores.size()];
+        int r = 0;
+        for (Map.Entry<Long, Double> entry : binaryScores.entrySet()) {
+            long key = entry.getKey();
+            coarseBinaryParent[r] = (int) (key / numCoarse / numCoarse);
+            coarseBinaryLeft[r]   = (int) (key / numCoarse % numCoarse);
+            coarseBinaryRight[r]  = (int) (key % numCoarse);
+            coarseBinaryScore[r]  = entry.getValue();
+            r++;
+        }
+
+        coarseByLeftStart   = CompiledGrammar.groupStarts(coarseBinaryLeft, numCoarse);
+        coarseByLeft        = CompiledGrammar.groupBy(coarseBinaryLeft, coarseByLeftStart);
+        coarseByParentStart = CompiledGrammar.groupStarts(coarseBinaryParent, numCoarse);
+        coarseByParent      = CompiledGrammar.groupBy(coarseBinaryParent, coarseByParentStart);
+
+        Map<Long, Double> unaryScores = new LinkedHashMap<Long, Double>();
+        for (int rule = 0; rule < grammar.unaryParent.length; rule++) {
+            long key = (long) fineToCoarse[grammar.unaryParent[rule]] * numCoarse + fineToCoarse[grammar.unaryChild[rule]];
+            Double score = unaryScores.get(key);
+            if (score == null || grammar.unaryScore[rule] > score) unaryScores.put(key, grammar.unaryScore[rule]);
+        }
+        coarseUnaryParent = new int[unaryScores.size()];
+        coarseUnaryChild  = new int[unaryScores.size()];
+        coarseUnaryScore  = new double[unaryScores.size()];
+        r = 0;
+        for (Map.Entry<Long, Double> entry : unaryScores.entrySet()) {
+            coarseUnaryParent[r] = (int) (entry.getKey() / numCoarse);
+            coarseUnaryChild[r]  = (int) (entry.getKey() % numCoarse);
+            coarseUnaryScore[r]  = entry.getValue();
+            r++;
+        }
+    }
+
+    /**
+     * Viterbi outside scores of the projected grammar over this sentence, [layer][cell][coarse state].  Every fine
+     * derivation projects onto a coarse one scoring at least as well, so these bound the fine outside scores.
+     */
+    private double[][][] projectedOutside(List<String> sentence, SentenceTagScores tags) {
+        int n = sentence.size();
+        double[][][] inside  = new double[2][n * n][];
+        double[][][] outside = new double[2][n * n][];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                for (int layer = 0; layer < 2; layer++) {
+                    inside[layer][i * n + j]  = newScores(numCoarse);
+                    outside[layer][i * n + j] = newScores(numCoarse);
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            int c = i * n + i;
+            double[] logScores = tags.scores[i];
+            for (int tag = 0; tag < logScores.length; tag++) {
+                inside[BINARY][c][tagToCoarse[tag]] = Math.max(inside[BINARY][c][tagToCoarse[tag]], logScores[tag]);
+            }
+            projectedUnaries(inside[BINARY][c], inside[UNARY][c], true);
+        }
+        for (int length = 2; length <= n; length++) {
+            for (int i = 0; i + length <= n; i++) {
+                int j = i + length - 1;
+                double[] scores = inside[BINARY][i * n + j];
+                for (int s = i + 1; s <= j; s++) {
+                    double[] leftScores  = inside[UNARY][i * n + s - 1];
+                    double[] rightScores = inside[UNARY][s * n + j];
+                    for (int left = 0; left < numCoarse; left++) {
+                        double leftScore = leftScores[left];
+                        if (leftScore == Double.NEGATIVE_INFINITY) continue;
+                        int end = coarseByLeftStart[left + 1];
+                        for (int k = coarseByLeftStart[left]; k < end; k++) {
+                            int rule = coarseByLeft[k];
+                            double score = coarseBinaryScore[rule] + leftScore + rightScores[coarseBinaryRight[rule]];
+                            if (score > scores[coarseBinaryParent[rule]]) scores[coarseBinaryParent[rule]] = score;
+                        }
+                    }
+                }
+                projectedUnaries(scores, inside[UNARY][i * n + j], true);
+            }
+        }
+
+        for (int state = 0; state < numCoarse; state++) {
+            if (coarseRoots[state]) outside[UNARY][n - 1][state] = 0.0;
+        }
+        for (int length = n; length >= 1; length--) {
+            for (int i = 0; i + length <= n; i++) {
+                int j = i + length - 1;
+                int c = i * n + j;
+                projectedUnaries(outside[UNARY][c], outside[BINARY][c], false);
+                double[] parentScores = outside[BINARY][c];
+                for (int s = i + 1; s <= j; s++) {
+                    int leftCell  = i * n + s - 1;
+                    int rightCell = s * n + j;
+                    double[] leftInside   = inside[UNARY][leftCell];
+                    double[] rightInside  = inside[UNARY][rightCell];
+                    double[] leftOutside  = outside[UNARY][leftCell];
+                    double[] rightOutside = outside[UNARY][rightCell];
+                    for (int parent = 0; parent < numCoarse; parent++) {
+                        if (parentScores[parent] == Double.NEGATIVE_INFINITY) continue;
+                        int end = coarseByParentStart[parent + 1];
+                        for (int k = coarseByParentStart[parent]; k < end; k++) {
+                            int rule = coarseByParent[k];
+                            double parentScore = parentScores[parent] + coarseBinaryScore[rule];
+                            int left  = coarseBinaryLeft[rule];
+                            int right = coarseBinaryRight[rule];
+                            double leftScore  = parentScore + rightInside[right];
+                            double rightScore = parentScore + leftInside[left];
+                            if (leftScore > leftOutside[left]) leftOutside[left] = leftScore;
+                            if (rightScore > rightOutside[right]) rightOutside[right] = rightScore;
+                        }
+                    }
+                }
+            }
+        }
+        return outside;
+    }
+
+    /**
+     * Applies the projected unary rules upwards (child scores to parents) or downwards (parent scores to children).
+     */
+    private void projectedUnaries(double[] from, double[] to, boolean upwards) {
+        for (int rule = 0; rule < coarseUnaryParent.length; rule++) {
+            int source = upwards ? coarseUnaryChild[rule] : coarseUnaryParent[rule];
+            int target = upwards ? coarseUnaryParent[rule] : coarseUnaryChild[rule];
+            double score = from[source] + coarseUnaryScore[rule];
+            if (score > to[target]) to[target] = score;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package edu.berkeley.nlp.assignments;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interned annotation labels, as composed by TreeAnnotations.MarkovContext.
+ *
+ * Every label is a node of a trie.  A vertical context (the ancestor symbols in its window, rendered joined by "^") is
+ * a path down from the root; the intermediate symbol of a context (rendered "@" + context + "->") hangs off the
+ * context's last node; and a horizontal context (the sibling symbols in its window, each rendered with a leading "_")
+ * continues down from there.  A context extended by one symbol is therefore one lookup away from the context itself,
+ * and equal labels are the same node, with a small integer id and a single String which is only rendered the first
+ * time it is asked for.  Annotating a treebank allocates one String per distinct label rather than one per node, and
+ * the Grammar's hash tables see one instance (whose hash code is cached) for all occurrences of a label.
+ *
+ * The copies of a MarkovContext which ParallelTrainer annotates with on several threads share their labels: lookups
+ * take no lock, and each node is created, and its label rendered, exactly once.
+ *
+ * @author Keith Stone
+ */
+public class AnnotationLabels {
+    private static final int VERTICAL     = 0;
+    private static final int INTERMEDIATE = 1;
+    private static final int SIBLING      = 2;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The empty vertical context.
+     */
+    final Node root = new Node(null, null, VERTICAL);
+
+    public final class Node {
+        final Node   parent;
+        final String symbol;   // null for the root and for intermediate nodes
+        final int    kind;
+        final int    id;
+
+        private volatile ConcurrentHashMap<String, Node> children;
+        private volatile Node                            intermediate;
+        private volatile String                          label;
+
+        private Node(Node parent, String symbol, int kind) {
+            this.parent = parent;
+            this.symbol = symbol;
+            this.kind   = kind;
+            this.id     = nextId.getAndIncrement();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            String rendered = label;
+            if (rendered == null) {
+                synchronized (this) {
+                    if (label == null) label = render();
+                    rendered = label;
+                }
+            }
+            return rendered;
+        }
+
+        private String render() {
+            switch (kind) {
+                case INTERMEDIATE:
+                    return "@" + parent.getLabel() + "->";
+                case SIBLING:
+                    return parent.getLabel() + "_" + symbol;
+                default:
+                    if (parent == null) return "";
+                    return parent == root ? symbol : parent.getLabel() + "^" + symbol;
+            }
+        }
+
+        /**
+         * This context extended by one symbol: a vertical context by an ancestor, an intermediate symbol or horizontal
+         * context by a sibling.
+         */
+        public Node getChild(String childSymbol) {
+            ConcurrentHashMap<String, Node> map = children;
+            if (map == null) {
+                synchronized (this) {
+                    if (children == null) children = new ConcurrentHashMap<String, Node>(4);
+                    map = children;
+                }
+            }
+            Node child = map.get(childSymbol);
+            if (child == null) {
+                synchronized (this) {
+                    child = map.get(childSymbol);
+                    if (child == null) {
+                        child = new Node(this, childSymbol, kind == VERTICAL ? VERTICAL : SIBLING);
+                        map.put(childSymbol, child);
+                    }
+                }
+            }
+            return child;
+        }
+
+        /**
+         * The intermediate symbol of this vertical context, with no siblings yet.
+         */
+        public Node getIntermediate() {
+            Node node = intermediate;
+            if (node == null) {
+                synchronized (this) {
+                    if (intermediate == null) intermediate = new Node(this, null, INTERMEDIATE);
+                    node = intermediate;
+                }
+            }
+            return node;
+        }
+
+        public String toString() {
+            return getLabel();
+        }
+    }
+
+    /**
+     * Number of distinct labels and label prefixes seen so far.
+     */
+    public int size() {
+        return nextId.get();
+    }
+}
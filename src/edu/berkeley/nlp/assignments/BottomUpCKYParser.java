@@ -0,0 +1,486 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Iterative CKY over the compiled grammar.  Spans are filled in order of increasing length; within a span the binary
+ * layer is built by walking the states present in each left sub-span and the (left, right) child pairs of that left
+ * child, testing the right sub-span's presence bitset once per pair before touching any of its rules, and the unary
+ * closure is then applied once to the whole cell.  Only states which are actually built from the words are ever
+ * visited, and the chart fill needs no recursion.
+ *
+ * Scores and tie-breaking agree with the memoized top-down CKYParser, so both return the same Viterbi parse.
+ *
+ * Optionally a CoarseToFinePruner first parses with the projected treebank grammar, and fine states are only built in
+ * spans where their coarse symbol has enough posterior mass.
+ *
+ * With setBeam() each cell keeps only its best states, after the binary layer is built and again after the unary
+ * closure.  States are ranked by inside score plus their context summary outside estimate for the span, since inside
+ * scores alone strongly favour states which are cheap to build but rarely lead anywhere (intermediate symbols above
+ * all).  Sentences which lose every parse to the pruning (beam or coarse-to-fine) are reparsed without it.
+ *
+ * With setBudget() a sentence which runs out of time or of chart memory steps down through cheaper modes: the parse
+ * as configured, then a tighter beam, then the coarse grammar of the pruner (when there is one), and finally the
+ * default parse.  Each mode which could be followed by another gets half of the time left, and is abandoned between
+ * cells (of its chart, or of the pruner's inside-outside pass) once that is spent.  Modes whose dense chart would not
+ * fit the memory budget are skipped, as are modes which beam a sentence longer than the outside estimates computed by
+ * setBudget().
+ *
+ * With setParallelism(N) the cells of each span length are filled concurrently on a fork/join pool: a cell only reads
+ * shorter spans, which are complete before its diagonal starts, and writes nothing but its own arrays.  Every cell is
+ * computed exactly as in the sequential fill, so the parse does not depend on the number of threads.
+ *
+ * @author Keith Stone
+ */
+public class BottomUpCKYParser extends CKYParser {
+    /**
+     * Roughly how many split points a fork/join task handles before it stops forking.
+     */
+    private static final int SPLITS_PER_TASK = 64;
+
+    /**
+     * States per cell kept by the beam a sentence over its time budget falls back to, unless setBeam() asked for
+     * fewer (then half as many are kept).
+     */
+    private static final int FALLBACK_BEAM_SIZE = 100;
+
+    /**
+     * Longest sentence whose outside estimates setBudget() computes when there is no memory budget to bound it; longer
+     * than any sentence of the WSJ test sections.
+     */
+    private static final int BUDGET_ESTIMATE_LENGTH = 128;
+
+    CoarseToFinePruner     pruner;
+    ForkJoinPool           pool;
+    Beam                   beam;           // null for no beam
+    Beam                   fallbackBeam;
+    ContextSummaryEstimate summary;
+    BottomUpCKYParser      coarseParser;   // the pruner's grammar, for sentences over budget
+    int                    estimatedLength; // longest sentence a budgeted parse may beam (see setBudget())
+
+    /**
+     * Limits on the states a cell keeps: its size best (0 for no limit), and those within logRatio of its best.
+     */
+    private static class Beam {
+        final int    size;
+        final double logRatio;
+
+        Beam(int size, double logRatio) {
+            this.size = size;
+            this.logRatio = logRatio;
+        }
+    }
+
+    public BottomUpCKYParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context) {
+        this(trainTrees, context, 0.0);
+    }
+
+    /**
+     * @param pruneThreshold minimum coarse posterior for a span's symbol to be kept; 0 disables coarse-to-fine pruning
+     */
+    public BottomUpCKYParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context, double pruneThreshold) {
+        this(trainTrees, context, pruneThreshold, new TrainingOptions());
+    }
+
+    public BottomUpCKYParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context, double pruneThreshold, TrainingOptions options) {
+        super(trainTrees, context, options);
+        if (pruneThreshold > 0.0) {
+            System.out.print("Building coarse grammar ... ");
+            pruner = new CoarseToFinePruner(trainTrees, grammar, pruneThreshold);
+        }
+    }
+
+    /**
+     * A parser for a saved model; pruning needs the model to have been saved with a coarse grammar.
+     */
+    public BottomUpCKYParser(ParserModel model, double pruneThreshold) {
+        super(model);
+        if (pruneThreshold > 0.0) {
+            if (!model.hasCoarseGrammar()) {
+                throw new IllegalArgumentException("Model has no coarse grammar for coarse-to-fine pruning");
+            }
+            pruner = new CoarseToFinePruner(model.coarseGrammar, model.coarseRootStates, model.coarseLexicon, grammar, pruneThreshold);
+        }
+    }
+
+    /**
+     * A parser over an already compiled grammar, without pruning.
+     */
+    BottomUpCKYParser(CompiledGrammar grammar, int[] rootStates, PCFGParserTester.Lexicon lexicon) {
+        super(grammar, rootStates, lexicon);
+    }
+
+    /**
+     * Fills each span length of the chart on the given number of threads (1, the default, fills it sequentially).  A
+     * pool set up by an earlier call is shut down, or kept if it has the same number of threads.
+     */
+    public void setParallelism(int threads) {
+        if (pool != null && pool.getParallelism() == threads) return;
+        if (pool != null) pool.shutdown();
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Limits every chart cell, after both its binary and its unary layer are built, to its beamSize best states
+     * (0 for no limit) and to the states scoring at least beamRatio times its best (0 for no limit).
+     */
+    public void setBeam(int beamSize, double beamRatio) {
+        if (summary == null) summary = new ContextSummaryEstimate(grammar, rootStates, lexicon, lexiconTags);
+        double logBeamRatio = beamRatio > 0.0 ? Math.log(beamRatio) : Double.NEGATIVE_INFINITY;
+        beam = beamSize > 0 || beamRatio > 0.0 ? new Beam(beamSize, logBeamRatio) : null;
+        int fallbackSize = beamSize > 0 && beamSize <= FALLBACK_BEAM_SIZE ? Math.max(1, beamSize / 2) : FALLBACK_BEAM_SIZE;
+        fallbackBeam = new Beam(fallbackSize, logBeamRatio);
+    }
+
+    public void setBudget(long timeMillis, long memoryBytes) {
+        super.setBudget(timeMillis, memoryBytes);
+        if (fallbackBeam == null) {
+            setBeam(0, 0.0);
+        }
+        // Outside estimates are extended on demand, holding a lock every other parser thread would wait on, and with
+        // no deadline.  Budgeted parses never extend them: they are computed here for every sentence whose chart fits
+        // the memory budget, and longer sentences skip the modes which beam
+        estimatedLength = BUDGET_ESTIMATE_LENGTH;
+        if (memoryBudgetBytes > 0) {
+            estimatedLength = 1;
+            while (fitsMemoryBudget(estimatedLength + 1, grammar)) estimatedLength++;
+        }
+        summary.getEstimates(estimatedLength);
+        if (pruner != null && coarseParser == null) {
+            coarseParser = new BottomUpCKYParser(pruner.grammar, pruner.rootStates, pruner.lexicon);
+            coarseParser.setMetrics(metrics);
+        }
+    }
+
+    public void setMetrics(ParserMetrics metrics) {
+        super.setMetrics(metrics);
+        if (coarseParser != null) coarseParser.setMetrics(metrics);
+    }
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        if (hasBudget()) return getBudgetedParse(sentence);
+        return extractBestParse(sentence, fillChart(sentence));
+    }
+
+    /**
+     * Steps down through the modes of parsing until one finishes within the budgets (see setBudget()).
+     */
+    private Tree<String> getBudgetedParse(List<String> sentence) {
+        long deadline = startBudget();
+        int n = sentence.size();
+        boolean coarseFits = coarseParser != null && fitsMemoryBudget(n, coarseParser.grammar);
+        boolean estimated = n <= estimatedLength;
+        if (fitsMemoryBudget(n, grammar)) {
+            if (beam == null || estimated) {
+                try {
+                    return extractBestParse(sentence, fillChart(sentence, halfwayTo(deadline)));
+                } catch (BudgetExceededException e) {
+                    // Step down
+                }
+            }
+            if (estimated) {
+                long t = tick();
+                try {
+                    TreeCache tc = fillChart(sentence, null, fallbackBeam, coarseFits ? halfwayTo(deadline) : deadline);
+                    t = charge(ParserMetrics.CHART, t);
+                    if (hasParse(tc, n)) {
+                        count(ParserMetrics.FALLBACK_BEAM, 1);
+                        return extractBestParse(sentence, tc);
+                    }
+                } catch (BudgetExceededException e) {
+                    charge(ParserMetrics.CHART, t);
+                }
+            }
+        }
+        if (coarseFits) {
+            long t = tick();
+            try {
+                TreeCache tc = coarseParser.fillChart(sentence, null, null, deadline);
+                charge(ParserMetrics.CHART, t);
+                if (coarseParser.hasParse(tc, n)) {
+                    count(ParserMetrics.FALLBACK_COARSE, 1);
+                    return coarseParser.extractBestParse(sentence, tc);
+                }
+            } catch (BudgetExceededException e) {
+                charge(ParserMetrics.CHART, t);
+            }
+        }
+        return fallBackToDefaultParse(sentence);
+    }
+
+    /**
+     * A deadline for a mode which has cheaper ones after it: half of the time left before the sentence's deadline.
+     */
+    private static long halfwayTo(long deadline) {
+        if (deadline == 0) return 0;
+        long now = System.nanoTime();
+        return now + (deadline - now) / 2;
+    }
+
+    protected TreeCache fillChart(List<String> sentence) {
+        return fillChart(sentence, 0);
+    }
+
+    /**
+     * The chart as configured (pruned, and reparsed without pruning if that loses every parse), abandoned at the
+     * deadline (0 for none).
+     */
+    private TreeCache fillChart(List<String> sentence, long deadline) {
+        long t = tick();
+        try {
+            CoarseToFinePruner.Constraints constraints = pruner == null ? null : pruner.prune(sentence, deadline);
+            if (pruner != null) t = charge(ParserMetrics.ESTIMATE, t);
+            TreeCache tc = fillChart(sentence, constraints, beam, deadline);
+            if ((constraints != null || beam != null) && !hasParse(tc, sentence.size())) {
+                tc = fillChart(sentence, null, null, deadline);
+            }
+            return tc;
+        } finally {
+            charge(ParserMetrics.CHART, t);
+        }
+    }
+
+    private TreeCache fillChart(List<String> sentence, CoarseToFinePruner.Constraints constraints, Beam beam, long deadline) {
+        int n = sentence.size();
+        TreeCache tc = newChart(sentence);
+        tc.deadline = deadline;
+        double[][][] estimates = beam != null ? summary.getEstimates(n) : null;
+
+        for (int i = 0; i < n; i++) {
+            fillLexicalCell(sentence, i, tc, constraints, beam, estimates);
+        }
+        for (int length = 2; length <= n; length++) {
+            if (pool != null) {
+                pool.invoke(new DiagonalTask(0, n - length + 1, length, tc, constraints, beam, estimates));
+            } else {
+                for (int i = 0; i + length <= n; i++) {
+                    fillCell(i, i + length - 1, tc, constraints, beam, estimates);
+                }
+            }
+        }
+        count(ParserMetrics.CELLS, n * (n + 1) / 2);
+        return tc;
+    }
+
+    /**
+     * Fills the cells (i, i + length - 1) for i in [start, end), halving the range until it is small enough.
+     */
+    private class DiagonalTask extends RecursiveAction {
+        private static final long serialVersionUID = 457880909813406263L;
+
+        final int start, end, length;
+        final TreeCache tc;
+        final CoarseToFinePruner.Constraints constraints;
+        final Beam beam;
+        final double[][][] estimates;
+
+        DiagonalTask(int start, int end, int length, TreeCache tc, CoarseToFinePruner.Constraints constraints, Beam beam, double[][][] estimates) {
+            this.start = start;
+            this.end = end;
+            this.length = length;
+            this.tc = tc;
+            this.constraints = constraints;
+            this.beam = beam;
+            this.estimates = estimates;
+        }
+
+        protected void compute() {
+            if (end - start <= 1 || (end - start) * (length - 1) <= SPLITS_PER_TASK) {
+                for (int i = start; i < end; i++) {
+                    fillCell(i, i + length - 1, tc, constraints, beam, estimates);
+                }
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new DiagonalTask(start, mid, length, tc, constraints, beam, estimates),
+                          new DiagonalTask(mid, end, length, tc, constraints, beam, estimates));
+            }
+        }
+    }
+
+    private boolean hasParse(TreeCache tc, int n) {
+        int top = tc.cell(0, n - 1);
+        for (int state : rootStates) {
+            if (state >= 0 && tc.unaryScores[top][state] > Double.NEGATIVE_INFINITY) return true;
+        }
+        return false;
+    }
+
+    private Tree<String> extractBestParse(List<String> sentence, TreeCache tc) {
+        long t = tick();
+        int n = sentence.size();
+        double binary_max = Double.NEGATIVE_INFINITY;
+        double unary_max = Double.NEGATIVE_INFINITY;
+        int binaryState = -1;
+        int unaryState  = -1;
+        int top = tc.cell(0, n - 1);
+        for (int state : rootStates) {
+            if (state < 0) continue;
+            if (n > 1 && tc.binaryScores[top][state] > binary_max) {
+                binary_max = tc.binaryScores[top][state];
+                binaryState = state;
+            }
+            if (tc.unaryScores[top][state] > unary_max) {
+                unary_max = tc.unaryScores[top][state];
+                unaryState = state;
+            }
+        }
+
+        Tree<String> annotatedBestParse = null;
+        if (binary_max > unary_max) {
+            annotatedBestParse = tc.buildBinaryTree(sentence, binaryState);
+        } else if (unaryState >= 0) {
+            annotatedBestParse = tc.buildUnaryTree (sentence, unaryState );
+        }
+        t = charge(ParserMetrics.BACKTRACE, t);
+
+        return finishParse(sentence, annotatedBestParse, t);
+    }
+
+    /**
+     * A single word: every tag the lexicon allows is closed upwards through the unary closure.
+     */
+    private void fillLexicalCell(List<String> sentence, int i, TreeCache tc, CoarseToFinePruner.Constraints constraints, Beam beam, double[][][] estimates) {
+        int c = tc.openCell(i, i, Double.NEGATIVE_INFINITY);
+        double[] tagScores = tc.binaryScores[c];
+        double[] logScores = tc.tags.scores[i];
+        for (int state : tc.tags.states[i]) {
+            tagScores[state] = logScores[lexiconTags[state]];
+        }
+        long rules = applyUnaryClosure(c, tc, constraints);
+        // The tag layer of a leaf cell is not a binary layer, so it must never be read back as one
+        Arrays.fill(tagScores, Double.NEGATIVE_INFINITY);
+        long pruned = 0;
+        if (beam != null) pruned += applyBeam(tc.unaryScores[c], tc.unaryRules[c], beam, estimates[ContextSummaryEstimate.UNARY][tc.length - 1]);
+        tc.markPresent(c);
+        count(ParserMetrics.RULES, rules);
+        count(ParserMetrics.PRUNED, pruned);
+    }
+
+    private void fillCell(int i, int j, TreeCache tc, CoarseToFinePruner.Constraints constraints, Beam beam, double[][][] estimates) {
+        int c = tc.openCell(i, j, Double.NEGATIVE_INFINITY);
+        double[] binaryScores = tc.binaryScores[c];
+        int[]    binaryRules  = tc.binaryRules[c];
+        short[]  splits       = tc.splits[c];
+        boolean[] allowed     = constraints == null ? null : constraints.binary[c];
+        long rules = 0, pruned = 0;
+
+        for (int s = i + 1; s <= j; s++) {
+            tc.checkDeadline();
+            int leftCell  = tc.cell(i, s - 1);
+            int rightCell = tc.cell(s, j);
+            double[] leftScores   = tc.unaryScores[leftCell];
+            double[] rightScores  = tc.unaryScores[rightCell];
+            long[]   leftPresent  = tc.present[leftCell];
+            long[]   rightPresent = tc.present[rightCell];
+            for (int w : grammar.binaryLeftChildWords) {
+                // States of the left span which are the left child of some rule, in increasing order
+                long lefts = leftPresent[w] & grammar.binaryLeftChildren[w];
+                while (lefts != 0) {
+                    int left = (w << 6) + Long.numberOfTrailingZeros(lefts);
+                    lefts &= lefts - 1;
+                    double leftScore = leftScores[left];
+                    int pairEnd = grammar.binaryPairsByLeftStart[left + 1];
+                    for (int g = grammar.binaryPairsByLeftStart[left]; g < pairEnd; g++) {
+                        int right = grammar.binaryPairRight[g];
+                        if ((rightPresent[right >>> 6] & (1L << right)) == 0) continue;
+                        double rightScore = rightScores[right];
+                        int end = grammar.binaryPairStart[g + 1];
+                        for (int k = grammar.binaryPairStart[g]; k < end; k++) {
+                            int rule = grammar.binaryByLeftRight[k];
+                            double score = grammar.binaryScore[rule] + leftScore + rightScore;
+                            int parent = grammar.binaryParent[rule];
+                            rules++;
+                            if (allowed != null && !allowed[constraints.fineToCoarse[parent]]) {
+                                pruned++;
+                                continue;
+                            }
+                            if (score > binaryScores[parent]) {
+                                binaryScores[parent] = score;
+                                binaryRules[parent]  = rule;
+                                splits[parent]       = (short) s;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        int outsideWords = tc.length - (j - i + 1);
+        if (beam != null) pruned += applyBeam(binaryScores, binaryRules, beam, estimates[ContextSummaryEstimate.BINARY][outsideWords]);
+        rules += applyUnaryClosure(c, tc, constraints);
+        if (beam != null) pruned += applyBeam(tc.unaryScores[c], tc.unaryRules[c], beam, estimates[ContextSummaryEstimate.UNARY][outsideWords]);
+        tc.markPresent(c);
+        count(ParserMetrics.RULES, rules);
+        count(ParserMetrics.PRUNED, pruned);
+    }
+
+    /**
+     * Drops the states of one layer of a cell which fall outside the beam, ranking them by inside score plus outside
+     * estimate.  States tied with the beam.size-th best are all kept.  Returns the number of states dropped.
+     */
+    private int applyBeam(double[] scores, int[] rules, Beam beam, double[] outsideEstimates) {
+        int count = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int state = 0; state < scores.length; state++) {
+            double merit = scores[state] + outsideEstimates[state];
+            if (merit > Double.NEGATIVE_INFINITY) {
+                count++;
+                best = Math.max(best, merit);
+            }
+        }
+
+        double cutoff = best + beam.logRatio;
+        if (beam.size > 0 && count > beam.size) {
+            double[] merits = new double[count];
+            int k = 0;
+            for (int state = 0; state < scores.length; state++) {
+                double merit = scores[state] + outsideEstimates[state];
+                if (merit > Double.NEGATIVE_INFINITY) merits[k++] = merit;
+            }
+            Arrays.sort(merits);
+            cutoff = Math.max(cutoff, merits[count - beam.size]);
+        }
+        int dropped = 0;
+        for (int state = 0; state < scores.length; state++) {
+            if (scores[state] > Double.NEGATIVE_INFINITY && !(scores[state] + outsideEstimates[state] >= cutoff)) {
+                scores[state] = Double.NEGATIVE_INFINITY;
+                rules[state]  = TreeCache.NO_RULE;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Fills the unary layer of cell c from its binary (or tag) layer, walking the closed rules of each present child.
+     * Returns the number of rules applied.
+     */
+    private long applyUnaryClosure(int c, TreeCache tc, CoarseToFinePruner.Constraints constraints) {
+        double[] childScores = tc.binaryScores[c];
+        double[] scores      = tc.unaryScores[c];
+        int[]    rules       = tc.unaryRules[c];
+        boolean[] allowed    = constraints == null ? null : constraints.unary[c];
+        long applied = 0;
+        for (int child = 0; child < childScores.length; child++) {
+            double childScore = childScores[child];
+            if (childScore == Double.NEGATIVE_INFINITY) continue;
+            int end = grammar.unaryByChildStart[child + 1];
+            applied += end - grammar.unaryByChildStart[child];
+            for (int k = grammar.unaryByChildStart[child]; k < end; k++) {
+                int rule = grammar.unaryByChild[k];
+                double score = grammar.unaryScore[rule] + childScore;
+                int parent = grammar.unaryParent[rule];
+                if (allowed != null && !allowed[constraints.fineToCoarse[parent]]) continue;
+                if (score > scores[parent]) {
+                    scores[parent] = score;
+                    rules[parent]  = rule;
+                }
+            }
+        }
+        return applied;
+    }
+}
@@ -10,80 +10,273 @@ import java.util.*;
  * @author Keith Stone
  */
 public class CKYParser extends PCFGParserTester.Parser {
-    PCFGParserTester.UnaryClosure uc;
-    PCFGParserTester.Grammar grammar;
-    Set<String>               rootTags;
+    CompiledGrammar grammar;
+    int[]           rootStates;
+    int[]           lexiconTags;
+    ParserMetrics   metrics;
 
-    public CKYParser(List<Tree<String>> trainTrees,  PCFGParserTester.TreeAnnotations.MarkovContext context) {
-        System.out.print("Annotating / binarizing training trees ... ");
-        List<Tree<String>> annotatedTrainTrees = annotateTrees(trainTrees, context);
-        System.out.println("done.");
+    // Chart buffers of each thread which parses with this parser, kept from one sentence to the next
+    private final ThreadLocal<ChartArena> arenas = new ThreadLocal<ChartArena>() {
+        protected ChartArena initialValue() {
+            return new ChartArena(grammar.numStates());
+        }
+    };
+    long            timeBudgetNanos;     // per sentence, 0 for no limit
+    long            memoryBudgetBytes;   // per sentence chart, 0 for no limit
+
+    /**
+     * Bytes per (span, state) entry of a dense chart: two scores, two backpointers and a split point.
+     */
+    static final int BYTES_PER_CHART_ENTRY = 2 * 8 + 2 * 4 + 2;
+
+    /**
+     * Thrown from inside a chart fill (or a coarse-to-fine pruning pass) whose deadline has passed.
+     */
+    static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 8960937416071783929L;
 
-        System.out.print("Building grammar ... ");
-        grammar = new PCFGParserTester.Grammar(annotatedTrainTrees);
-        System.out.println("done. (" + grammar.getStates().size() + " states)");
-        uc = new PCFGParserTester.UnaryClosure(grammar);
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Abandons the parse if the deadline (System.nanoTime(), or 0 for none) has passed.
+     */
+    static void checkDeadline(long deadline) {
+        if (deadline != 0 && System.nanoTime() > deadline) throw new BudgetExceededException();
+    }
+
+    public CKYParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context) {
+        this(trainTrees, context, new TrainingOptions());
+    }
+
+    public CKYParser(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context, TrainingOptions options) {
+        System.out.print("Annotating / binarizing training trees and building grammar ... ");
+        ParallelTrainer trainer = new ParallelTrainer(trainTrees, context, options.threads);
+        PCFGParserTester.Grammar trainedGrammar = trainer.grammar;
+        System.out.println("done. (" + trainer.numTrees + " trees, " + trainedGrammar.getStates().size() + " states)");
+        Set<String> rootTags = trainer.rootLabels;
+        if (options.minimizes()) {
+            Set<String> fixedStates = new HashSet<String>(trainer.lexicon.getAllTags());
+            fixedStates.addAll(rootTags);
+            GrammarMinimizer minimizer = new GrammarMinimizer(trainedGrammar, fixedStates, options.minimizeTolerance);
+            System.out.println("Minimized grammar: " + minimizer);
+            trainedGrammar = minimizer.grammar;
+        }
+        PCFGParserTester.UnaryClosure uc = new PCFGParserTester.UnaryClosure(trainedGrammar);
         //System.out.println(uc);
+        grammar = new CompiledGrammar(trainedGrammar, uc);
 
         // Store all possible start tags for parsing
-        rootTags = new HashSet<String>();
-
-        for (Tree<String> tree : annotatedTrainTrees) {
-            rootTags.add(tree.getLabel());
+        rootStates = new int[rootTags.size()];
+        int r = 0;
+        for (String tag : CollectionUtils.sort(rootTags)) {
+            rootStates[r++] = grammar.getState(tag);
         }
 
-        lexicon = new PCFGParserTester.Lexicon(annotatedTrainTrees);
+        lexicon = trainer.lexicon;
+        indexLexiconTags();
 
         System.out.println("done.");
     }
 
+    /**
+     * A parser for a model read back with ParserModel.load().
+     */
+    public CKYParser(ParserModel model) {
+        this(model.grammar, model.rootStates, model.lexicon);
+    }
+
+    /**
+     * A parser over an already compiled grammar, such as a CoarseToFinePruner's.
+     */
+    CKYParser(CompiledGrammar grammar, int[] rootStates, PCFGParserTester.Lexicon lexicon) {
+        this.grammar    = grammar;
+        this.rootStates = rootStates;
+        this.lexicon    = lexicon;
+        indexLexiconTags();
+    }
+
+    /**
+     * Maps grammar states onto the lexicon's tag indices (-1 for states which never tag a word).
+     */
+    private void indexLexiconTags() {
+        lexiconTags = new int[grammar.numStates()];
+        for (int state = 0; state < lexiconTags.length; state++) {
+            lexiconTags[state] = lexicon.getTagIndexer().indexOf(grammar.getLabel(state));
+        }
+    }
+
+    /**
+     * Charges the stages of every parse to the given metrics from now on (null to stop).
+     */
+    public void setMetrics(ParserMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Clock reading to time a stage from, or 0 without metrics.
+     */
+    protected long tick() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Charges the time since start to a stage and returns the current clock reading, to time the next stage from.
+     */
+    protected long charge(int stage, long start) {
+        if (metrics == null) return 0;
+        long now = System.nanoTime();
+        metrics.addTime(stage, now - start);
+        return now;
+    }
+
+    protected void count(int counter, long amount) {
+        if (metrics != null) metrics.count(counter, amount);
+    }
+
+    /**
+     * Per-sentence budgets (0 for no limit): a sentence whose parse runs for longer than timeMillis, or whose chart is
+     * estimated by estimateChartBytes() to need more than memoryBytes, falls back to a cheaper way of parsing it.  This
+     * parser falls straight back to the default parse; BottomUpCKYParser first tries a tighter beam and the coarse
+     * grammar.  Fallbacks are counted in the metrics.
+     */
+    public void setBudget(long timeMillis, long memoryBytes) {
+        this.timeBudgetNanos = timeMillis * 1000000L;
+        this.memoryBudgetBytes = memoryBytes;
+    }
+
+    protected boolean hasBudget() {
+        return timeBudgetNanos > 0 || memoryBudgetBytes > 0;
+    }
+
+    /**
+     * Estimated size of the chart for a sentence of the given length: each of its length * (length + 1) / 2 spans holds
+     * an entry for every state of the grammar, whichever of them are ever built.
+     */
+    static long estimateChartBytes(int length, CompiledGrammar grammar) {
+        return (long) length * (length + 1) / 2 * grammar.numStates() * BYTES_PER_CHART_ENTRY;
+    }
+
+    protected boolean fitsMemoryBudget(int length, CompiledGrammar grammar) {
+        return memoryBudgetBytes <= 0 || estimateChartBytes(length, grammar) <= memoryBudgetBytes;
+    }
+
+    /**
+     * The time budget's deadline for a parse starting now, or 0 for none.
+     */
+    protected long startBudget() {
+        return timeBudgetNanos > 0 ? System.nanoTime() + timeBudgetNanos : 0;
+    }
+
+    /**
+     * The parse of last resort, for a sentence which is over its budget in every other mode.
+     */
+    protected Tree<String> fallBackToDefaultParse(List<String> sentence) {
+        count(ParserMetrics.FALLBACK_DEFAULT, 1);
+        return finishParse(sentence, null, tick());
+    }
+
     public Tree<String> getBestParse(List<String> sentence) {
-        TreeCache tc = new TreeCache(sentence, grammar);
-
-        double binary_max = 0.0;
-        double unary_max = 0.0;
-        String binaryTag = "ROOT";
-        String unaryTag  = "ROOT";
-        for (String tag : rootTags) {
-            if (sentence.size() > 1) {
-                double binary_score = binaryPi(sentence, 0, sentence.size() - 1, tag, tc);
-                if (binary_score > binary_max) {
-                    binary_max = binary_score;
-                    binaryTag = tag;
+        if (!fitsMemoryBudget(sentence.size(), grammar)) return fallBackToDefaultParse(sentence);
+        long t = tick();
+        TreeCache tc = newChart(sentence);
+        tc.deadline = startBudget();
+
+        double binary_max = Double.NEGATIVE_INFINITY;
+        double unary_max = Double.NEGATIVE_INFINITY;
+        int binaryState = -1;
+        int unaryState  = -1;
+        try {
+            for (int state : rootStates) {
+                if (state < 0) continue;
+                if (sentence.size() > 1) {
+                    double binary_score = binaryPi(sentence, 0, sentence.size() - 1, state, tc);
+                    if (binary_score > binary_max) {
+                        binary_max = binary_score;
+                        binaryState = state;
+                    }
                 }
-            }
 
-            double unary_score  =  unaryPi(sentence, 0, sentence.size() - 1, tag, tc);
-            if (unary_score > unary_max) {
-                unary_max = unary_score;
-                unaryTag = tag;
+                double unary_score  =  unaryPi(sentence, 0, sentence.size() - 1, state, tc);
+                if (unary_score > unary_max) {
+                    unary_max = unary_score;
+                    unaryState = state;
+                }
             }
+        } catch (BudgetExceededException e) {
+            charge(ParserMetrics.CHART, t);
+            return fallBackToDefaultParse(sentence);
         }
 
-        Tree<String> annotatedBestParse;
+        t = charge(ParserMetrics.CHART, t);
+        count(ParserMetrics.CELLS, tc.openCells());
+        count(ParserMetrics.RULES, tc.rulesApplied);
+
+        Tree<String> annotatedBestParse = null;
         if (binary_max > unary_max) {
-            annotatedBestParse = tc.buildBinaryTree(sentence, binaryTag);
-        } else {
-            annotatedBestParse = tc.buildUnaryTree (sentence, unaryTag );
+            annotatedBestParse = tc.buildBinaryTree(sentence, binaryState);
+        } else if (unaryState >= 0) {
+            annotatedBestParse = tc.buildUnaryTree (sentence, unaryState );
         }
+        t = charge(ParserMetrics.BACKTRACE, t);
 
+        return finishParse(sentence, annotatedBestParse, t);
+    }
+
+    /**
+     * Normalizes and unannotates a parse read back from the chart (null if the chart has none, in which case the
+     * default parse stands in), timing both stages from the clock reading t.
+     */
+    protected Tree<String> finishParse(List<String> sentence, Tree<String> annotatedBestParse, long t) {
         // Oops case, create the default tree.
-        if (Math.max(binary_max, unary_max) == 0.0) {
+        if (annotatedBestParse == null) {
             annotatedBestParse = default_parse(sentence);
         } else {
             normalize_structure(annotatedBestParse);
         }
+        t = charge(ParserMetrics.NORMALIZE, t);
+        Tree<String> bestParse = PCFGParserTester.TreeAnnotations.unAnnotateTree(annotatedBestParse);
+        charge(ParserMetrics.UNANNOTATE, t);
+        return bestParse;
+    }
+
+    /**
+     * The k best parses of the sentence, best first, each with its log score.  The trees are unannotated, like those of
+     * getBestParse(); see KBestExtractor.
+     */
+    public List<Pair<Tree<String>, Double>> getKBestParses(List<String> sentence, int k) {
+        return new KBestExtractor(this, sentence, fillChart(sentence)).extract(k);
+    }
+
+    /**
+     * A chart for the sentence in which every root state over the whole sentence has been scored.
+     */
+    protected TreeCache fillChart(List<String> sentence) {
+        TreeCache tc = newChart(sentence);
+        for (int state : rootStates) {
+            if (state >= 0) unaryPi(sentence, 0, sentence.size() - 1, state, tc);
+        }
+        return tc;
+    }
 
-        return PCFGParserTester.TreeAnnotations.unAnnotateTree(annotatedBestParse);
+    /**
+     * An empty chart for the sentence, with the lexicon's scores for its words looked up.  It is built on this thread's
+     * ChartArena, so it is only valid until the thread's next newChart().
+     */
+    protected TreeCache newChart(List<String> sentence) {
+        return new TreeCache(sentence, grammar, new SentenceTagScores(sentence, lexicon, lexiconTags), arenas.get());
     }
 
-    private void normalize_structure(Tree<String> tree) {
+    protected void normalize_structure(Tree<String> tree) {
         if (tree.getChildren().size() == 1) {
             Tree<String> child = tree.getChildren().get(0);
             if (tree.getLabel().equals(child.getLabel())) {
                 tree.setChildren(child.getChildren());
             } else {
-                List<String> path = uc.getPath(new PCFGParserTester.UnaryRule(tree.getLabel(), child.getLabel()));
+                int rule = grammar.findUnaryRule(grammar.getState(tree.getLabel()), grammar.getState(child.getLabel()));
+                List<String> path = grammar.getUnaryPath(rule);
                 if (path.size() > 2) {
                     Tree<String> topOfChain = null;
                     for (int i = path.size() - 1; i >= 0; i--) {
@@ -102,7 +295,7 @@ public class CKYParser extends PCFGParserTester.Parser {
         }
     }
 
-    private Tree<String> default_parse(List<String> sentence) {
+    protected Tree<String> default_parse(List<String> sentence) {
         List<Tree<String>> children = new ArrayList<Tree<String>>();
         for (String word : sentence) {
             String tag = getBestTag(word);
@@ -112,60 +305,85 @@ public class CKYParser extends PCFGParserTester.Parser {
         return new Tree<String>("ROOT", children);
     }
 
-    private double unaryPi(List<String> sentence, int i, int j, String tag, TreeCache treeCache) {
+    private double unaryPi(List<String> sentence, int i, int j, int state, TreeCache treeCache) {
         // Illegal
         if (i > j) {
             throw new IllegalArgumentException("I is not allowed to be larger than J");
         }
 
         // Always check the cache first
-        CacheStore cache = treeCache.getCache(i,j,tag);
-        if (cache.getUnaryMax() >= 0.0) {
-            return cache.getUnaryMax();
+        if (treeCache.hasUnaryScore(i, j, state)) {
+            return treeCache.getUnaryScore(i, j, state);
         }
 
-        List<PCFGParserTester.UnaryRule> closure = uc.getClosedUnaryRulesByParent(tag);
-        for (PCFGParserTester.UnaryRule rule : closure) {
-            String childTag = rule.getChild();
-            double ruleScore =  rule.getScore();
+        double max = Double.NEGATIVE_INFINITY;
+        int maxRule = TreeCache.NO_RULE;
+        int end = grammar.unaryByParentStart[state + 1];
+        for (int rule = grammar.unaryByParentStart[state]; rule < end; rule++) {
+            int childState = grammar.unaryChild[rule];
+            double ruleScore = grammar.unaryScore[rule];
             double expansionScore;
             if (i == j) {
-                expansionScore =  lexicon.scoreTagging(sentence.get(i), childTag);
+                expansionScore = treeCache.tags.score(i, lexiconTags[childState]);
             } else {
-                expansionScore = binaryPi(sentence, i, j, childTag, treeCache);
+                expansionScore = binaryPi(sentence, i, j, childState, treeCache);
+            }
+            double score = ruleScore + expansionScore;
+            treeCache.rulesApplied++;
+            if (score > max) {
+                max = score;
+                maxRule = rule;
             }
-            double score = ruleScore * expansionScore;
-            cache.addUnaryRule(score, rule);
         }
+        treeCache.setUnary(i, j, state, max, maxRule);
 
-        return Math.max(cache.getUnaryMax(), 0.0);
+        return max;
     }
 
-    private double binaryPi(List<String> sentence, int i, int j, String tag, TreeCache treeCache) {
+    private double binaryPi(List<String> sentence, int i, int j, int state, TreeCache treeCache) {
         // Illegal
         if (i > j) {
             throw new IllegalArgumentException("I is not allowed to be larger than J");
         }
 
         // Always check the cache first
-        CacheStore cache = treeCache.getCache(i,j,tag);
-        if (cache.getBinaryMax() >= 0.0) {
-            return cache.getBinaryMax();
+        if (treeCache.hasBinaryScore(i, j, state)) {
+            return treeCache.getBinaryScore(i, j, state);
         }
         if (i == j) {
             throw new IllegalArgumentException("Cannot binary split a single node");
         } else {
+            treeCache.checkDeadline();
+            double max = Double.NEGATIVE_INFINITY;
+            int maxRule = TreeCache.NO_RULE;
+            int maxSplit = -1;
+            int start = grammar.binaryByParentStart[state];
+            int end   = grammar.binaryByParentStart[state + 1];
             for (int s = i + 1; s <= j; s++) {
-                List<PCFGParserTester.BinaryRule> binaryRules = grammar.getBinaryRulesByParent(tag);
-                for ( PCFGParserTester.BinaryRule binaryRule : binaryRules) {
-                    double ruleScore  = binaryRule.getScore();
-                    double leftScore  = unaryPi(sentence, i, s - 1, binaryRule.getLeftChild(),  treeCache);
-                    double rightScore = unaryPi(sentence, s,     j, binaryRule.getRightChild(), treeCache);
-                    double score = ruleScore *leftScore * rightScore;
-                    cache.addBinaryRule(score, binaryRule, s);
+                // The parent's rules come in runs sharing a left child; a left child which cannot span (i, s - 1)
+                // rules out its whole run without probing the right children
+                for (int rule = start; rule < end; ) {
+                    int runEnd = grammar.binaryLeftRunEnd[rule];
+                    double leftScore = unaryPi(sentence, i, s - 1, grammar.binaryLeft[rule], treeCache);
+                    if (leftScore == Double.NEGATIVE_INFINITY) {
+                        rule = runEnd;
+                        continue;
+                    }
+                    for (; rule < runEnd; rule++) {
+                        double ruleScore  = grammar.binaryScore[rule];
+                        double rightScore = unaryPi(sentence, s, j, grammar.binaryRight[rule], treeCache);
+                        double score = ruleScore + leftScore + rightScore;
+                        treeCache.rulesApplied++;
+                        if (score > max) {
+                            max = score;
+                            maxRule = rule;
+                            maxSplit = s;
+                        }
+                    }
                 }
             }
-            return Math.max(cache.getBinaryMax(), 0.0);
+            treeCache.setBinary(i, j, state, max, maxRule, maxSplit);
+            return max;
         }
     }
 }
@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.assignments;
+
+import java.util.Arrays;
+
+/**
+ * Grow-only store of chart buffers, reused from one sentence to the next so that parsing in steady state allocates no
+ * chart memory.  An arena serves one thread (CKYParser keeps one per parsing thread) and backs one TreeCache at a
+ * time: starting a chart hands the same buffers out again, so the previous chart must no longer be in use.
+ *
+ * Each cell's score, backpointer, split and presence buffers are pooled by span, under the triangular index
+ * slot(i, j) = j * (j + 1) / 2 + i.  Unlike the chart's own cell index, which depends on the sentence length, a span
+ * keeps its slot in sentences of every length, and the spans of an n word sentence fill exactly the first
+ * n * (n + 1) / 2 slots.  Buffers are allocated the first time a chart opens their span and kept from then on, so the
+ * arena grows to the chart of the longest sentence parsed so far and then stays that size.  The outer arrays which a
+ * chart reads its cells through (by cell index, null for a cell not yet opened) are pooled as well and cleared for
+ * every chart.  Reopened buffers still hold the previous chart's values; TreeCache resets a cell when it opens it,
+ * exactly as it initializes a fresh one.
+ *
+ * @author Keith Stone
+ */
+public class ChartArena {
+    final int numStates;
+
+    // The current chart's cells, by cell index: the pooled buffers of its open cells, null for the rest
+    double[][] unaryScores  = new double[0][];
+    double[][] binaryScores = new double[0][];
+    int[][]    unaryRules   = new int[0][];
+    int[][]    binaryRules  = new int[0][];
+    short[][]  splits       = new short[0][];
+    long[][]   present      = new long[0][];
+
+    // Every buffer allocated so far, by slot
+    private double[][] unaryScorePool  = new double[0][];
+    private double[][] binaryScorePool = new double[0][];
+    private int[][]    unaryRulePool   = new int[0][];
+    private int[][]    binaryRulePool  = new int[0][];
+    private short[][]  splitPool       = new short[0][];
+    private long[][]   presentPool     = new long[0][];
+
+    public ChartArena(int numStates) {
+        this.numStates = numStates;
+    }
+
+    /**
+     * The pool slot of span (i, j), whatever the sentence length.
+     */
+    static int slot(int i, int j) {
+        return j * (j + 1) / 2 + i;
+    }
+
+    /**
+     * Starts a chart for a sentence of the given length, with none of its cells open.
+     */
+    void reset(int length) {
+        int cells = length * length;
+        if (unaryScores.length < cells) {
+            unaryScores  = new double[cells][];
+            binaryScores = new double[cells][];
+            unaryRules   = new int[cells][];
+            binaryRules  = new int[cells][];
+            splits       = new short[cells][];
+            present      = new long[cells][];
+        } else {
+            Arrays.fill(unaryScores, 0, cells, null);
+            Arrays.fill(binaryScores, 0, cells, null);
+            Arrays.fill(unaryRules, 0, cells, null);
+            Arrays.fill(binaryRules, 0, cells, null);
+            Arrays.fill(splits, 0, cells, null);
+            Arrays.fill(present, 0, cells, null);
+        }
+        int slots = length * (length + 1) / 2;
+        if (unaryScorePool.length < slots) {
+            unaryScorePool  = Arrays.copyOf(unaryScorePool, slots);
+            binaryScorePool = Arrays.copyOf(binaryScorePool, slots);
+            unaryRulePool   = Arrays.copyOf(unaryRulePool, slots);
+            binaryRulePool  = Arrays.copyOf(binaryRulePool, slots);
+            splitPool       = Arrays.copyOf(splitPool, slots);
+            presentPool     = Arrays.copyOf(presentPool, slots);
+        }
+    }
+
+    /**
+     * Opens cell c, span (i, j), of the current chart on the span's pooled buffers, allocating them if no chart has
+     * opened the span before.  The buffers are not cleared.
+     */
+    void open(int c, int i, int j) {
+        int s = slot(i, j);
+        if (unaryScorePool[s] == null) {
+            unaryScorePool[s]  = new double[numStates];
+            binaryScorePool[s] = new double[numStates];
+            unaryRulePool[s]   = new int[numStates];
+            binaryRulePool[s]  = new int[numStates];
+            splitPool[s]       = new short[numStates];
+            presentPool[s]     = new long[(numStates + 63) >>> 6];
+        }
+        unaryScores[c]  = unaryScorePool[s];
+        binaryScores[c] = binaryScorePool[s];
+        unaryRules[c]   = unaryRulePool[s];
+        binaryRules[c]  = binaryRulePool[s];
+        splits[c]       = splitPool[s];
+        present[c]      = presentPool[s];
+    }
+}
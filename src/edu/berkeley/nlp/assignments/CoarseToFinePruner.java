@@ -0,0 +1,336 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.CollectionUtils;
+
+import java.util.*;
+
+/**
+ * Coarse pass of a coarse-to-fine parser.  The coarse grammar is trained on the training trees with every annotated
+ * state projected back onto its bare treebank symbol (see TreeAnnotations.projectLabel), so it has only a few hundred
+ * rules.  For each sentence we run inside-outside with that grammar and keep, per span, the coarse symbols whose
+ * posterior is at least the threshold.  A fine (annotated) state is then only built in a span if its projection
+ * survived there.
+ *
+ * Inside and outside sums over unary chains use the (Viterbi) closure scores, so the posteriors are a slight
+ * underestimate; they are only used to decide what to prune.
+ *
+ * @author Keith Stone
+ */
+public class CoarseToFinePruner {
+    CompiledGrammar          grammar;
+    PCFGParserTester.Lexicon lexicon;
+    int[]                    lexiconTags;
+    int[]                    rootStates;
+    int[]                    fineToCoarse;
+    double                   logThreshold;
+    double[]                 binaryProbability;
+    double[]                 unaryProbability;
+
+    /**
+     * The surviving coarse symbols of one sentence, per span (indexed i * length + j) and per layer: unary[c] holds the
+     * states allowed after the unary closure, binary[c] those allowed before it.
+     */
+    public static class Constraints {
+        boolean[][] unary;
+        boolean[][] binary;
+        int[]       fineToCoarse;
+
+        public boolean allowsUnary(int cell, int fineState) {
+            return unary[cell][fineToCoarse[fineState]];
+        }
+
+        public boolean allowsBinary(int cell, int fineState) {
+            return binary[cell][fineToCoarse[fineState]];
+        }
+    }
+
+    public CoarseToFinePruner(Iterable<Tree<String>> trainTrees, CompiledGrammar fineGrammar, double threshold) {
+        // Binarization does not depend on the Markov orders, so binarizing with no horizontal history and projecting
+        // gives exactly the projections of the fine training trees.
+        PCFGParserTester.TreeAnnotations.MarkovContext context = new PCFGParserTester.TreeAnnotations.MarkovContext(1, 0);
+        List<Tree<String>> coarseTrees = new ArrayList<Tree<String>>();
+        Set<String> rootTags = new HashSet<String>();
+        for (Tree<String> tree : trainTrees) {
+            Tree<String> coarseTree = PCFGParserTester.TreeAnnotations.projectTree(PCFGParserTester.TreeAnnotations.annotateTree(tree, context));
+            coarseTrees.add(coarseTree);
+            rootTags.add(coarseTree.getLabel());
+        }
+
+        PCFGParserTester.Grammar coarseGrammar = new PCFGParserTester.Grammar(coarseTrees);
+        grammar = new CompiledGrammar(coarseGrammar, new PCFGParserTester.UnaryClosure(coarseGrammar));
+        lexicon = new PCFGParserTester.Lexicon(coarseTrees);
+        System.out.println("Coarse grammar: " + grammar.numStates() + " states, " + grammar.binaryParent.length + " binary rules");
+
+        rootStates = new int[rootTags.size()];
+        int r = 0;
+        for (String tag : CollectionUtils.sort(rootTags)) {
+            rootStates[r++] = grammar.getState(tag);
+        }
+
+        initialize(fineGrammar, threshold);
+    }
+
+    /**
+     * A pruner for a coarse grammar read back with ParserModel.load().
+     */
+    public CoarseToFinePruner(CompiledGrammar coarseGrammar, int[] rootStates, PCFGParserTester.Lexicon lexicon, CompiledGrammar fineGrammar, double threshold) {
+        this.grammar    = coarseGrammar;
+        this.rootStates = rootStates;
+        this.lexicon    = lexicon;
+        initialize(fineGrammar, threshold);
+    }
+
+    private void initialize(CompiledGrammar fineGrammar, double threshold) {
+        lexiconTags = new int[grammar.numStates()];
+        for (int state = 0; state < lexiconTags.length; state++) {
+            lexiconTags[state] = lexicon.getTagIndexer().indexOf(grammar.getLabel(state));
+        }
+
+        fineToCoarse = new int[fineGrammar.numStates()];
+        for (int state = 0; state < fineToCoarse.length; state++) {
+            fineToCoarse[state] = grammar.getState(PCFGParserTester.TreeAnnotations.projectLabel(fineGrammar.getLabel(state)));
+            if (fineToCoarse[state] < 0) {
+                throw new IllegalStateException("No coarse symbol for fine state " + fineGrammar.getLabel(state));
+            }
+        }
+        logThreshold = Math.log(threshold);
+
+        binaryProbability = new double[grammar.binaryScore.length];
+        for (int rule = 0; rule < binaryProbability.length; rule++) {
+            binaryProbability[rule] = Math.exp(grammar.binaryScore[rule]);
+        }
+        unaryProbability = new double[grammar.unaryScore.length];
+        for (int rule = 0; rule < unaryProbability.length; rule++) {
+            unaryProbability[rule] = Math.exp(grammar.unaryScore[rule]);
+        }
+    }
+
+    /**
+     * Runs inside-outside with the coarse grammar, or returns null if the coarse grammar cannot parse the sentence at
+     * all (in which case nothing should be pruned).
+     *
+     * Scores are kept as probabilities, with each cell rescaled so its best entry is 1 and the log of the scale kept on
+     * the side.  That keeps the sums to plain multiply-adds without underflowing on long sentences; anything more than
+     * ~1e-300 below the best entry of its cell is lost, which is far below any pruning threshold.
+     */
+    public Constraints prune(List<String> sentence) {
+        return prune(sentence, 0);
+    }
+
+    /**
+     * As prune(sentence), abandoned between cells with a CKYParser.BudgetExceededException once the deadline
+     * (System.nanoTime(), or 0 for none) has passed.
+     */
+    public Constraints prune(List<String> sentence, long deadline) {
+        int n = sentence.size();
+        int numStates = grammar.numStates();
+        double[][] insideUnary   = new double[n * n][];
+        double[][] insideBinary  = new double[n * n][];
+        double[][] outsideUnary  = new double[n * n][];
+        double[][] outsideBinary = new double[n * n][];
+        double[] insideUnaryScale   = new double[n * n];
+        double[] insideBinaryScale  = new double[n * n];
+        double[] outsideUnaryScale  = new double[n * n];
+        double[] outsideBinaryScale = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                int c = i * n + j;
+                insideUnary[c]   = new double[numStates];
+                insideBinary[c]  = new double[numStates];
+                outsideUnary[c]  = new double[numStates];
+                outsideBinary[c] = new double[numStates];
+                outsideUnaryScale[c] = Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        // Inside
+        for (int i = 0; i < n; i++) {
+            int c = i * n + i;
+            double[] logScores = lexicon.getLogScores(sentence.get(i));
+            double max = Double.NEGATIVE_INFINITY;
+            for (int state = 0; state < numStates; state++) {
+                if (lexiconTags[state] >= 0) max = Math.max(max, logScores[lexiconTags[state]]);
+            }
+            for (int state = 0; state < numStates; state++) {
+                if (lexiconTags[state] >= 0) insideBinary[c][state] = Math.exp(logScores[lexiconTags[state]] - max);
+            }
+            insideBinaryScale[c] = max;
+            insideUnaryScale[c] = max + sumUnaryInside(insideBinary[c], insideUnary[c]);
+        }
+        for (int length = 2; length <= n; length++) {
+            for (int i = 0; i + length <= n; i++) {
+                int j = i + length - 1;
+                int c = i * n + j;
+                CKYParser.checkDeadline(deadline);
+                double base = Double.NEGATIVE_INFINITY;
+                for (int s = i + 1; s <= j; s++) {
+                    base = Math.max(base, insideUnaryScale[i * n + s - 1] + insideUnaryScale[s * n + j]);
+                }
+                double[] scores = insideBinary[c];
+                for (int s = i + 1; s <= j; s++) {
+                    int leftCell  = i * n + s - 1;
+                    int rightCell = s * n + j;
+                    double factor = Math.exp(insideUnaryScale[leftCell] + insideUnaryScale[rightCell] - base);
+                    if (factor == 0.0) continue;
+                    double[] leftScores  = insideUnary[leftCell];
+                    double[] rightScores = insideUnary[rightCell];
+                    for (int left = 0; left < numStates; left++) {
+                        double leftScore = leftScores[left];
+                        if (leftScore == 0.0) continue;
+                        leftScore *= factor;
+                        int end = grammar.binaryByLeftStart[left + 1];
+                        for (int k = grammar.binaryByLeftStart[left]; k < end; k++) {
+                            int rule = grammar.binaryByLeft[k];
+                            double rightScore = rightScores[grammar.binaryRight[rule]];
+                            if (rightScore == 0.0) continue;
+                            scores[grammar.binaryParent[rule]] += binaryProbability[rule] * leftScore * rightScore;
+                        }
+                    }
+                }
+                insideBinaryScale[c] = base + normalize(scores);
+                insideUnaryScale[c] = insideBinaryScale[c] + sumUnaryInside(scores, insideUnary[c]);
+            }
+        }
+
+        int top = n - 1;
+        double total = 0.0;
+        for (int root : rootStates) {
+            if (root < 0) continue;
+            outsideUnary[top][root] = 1.0;
+            total += insideUnary[top][root];
+        }
+        if (total == 0.0 || Double.isInfinite(insideUnaryScale[top])) {
+            return null;
+        }
+        outsideUnaryScale[top] = 0.0;
+        double logTotal = Math.log(total) + insideUnaryScale[top];
+
+        // Outside, from the whole sentence down to single words
+        for (int length = n; length >= 1; length--) {
+            for (int i = 0; i + length <= n; i++) {
+                int j = i + length - 1;
+                int c = i * n + j;
+                if (outsideUnaryScale[c] == Double.NEGATIVE_INFINITY) continue;
+                CKYParser.checkDeadline(deadline);
+                outsideBinaryScale[c] = outsideUnaryScale[c] + sumUnaryOutside(outsideUnary[c], insideBinary[c], outsideBinary[c]);
+                if (length == 1) continue;
+                double[] parentOutside = outsideBinary[c];
+                for (int s = i + 1; s <= j; s++) {
+                    int leftCell  = i * n + s - 1;
+                    int rightCell = s * n + j;
+                    double[] leftScores  = insideUnary[leftCell];
+                    double[] rightScores = insideUnary[rightCell];
+                    double[] leftOutside  = outsideUnary[leftCell];
+                    double[] rightOutside = outsideUnary[rightCell];
+                    // Bring both children's outside arrays onto the scale of this (parent, split) contribution
+                    double leftFactor  = rescale(outsideUnary, outsideUnaryScale, leftCell, outsideBinaryScale[c] + insideUnaryScale[rightCell]);
+                    double rightFactor = rescale(outsideUnary, outsideUnaryScale, rightCell, outsideBinaryScale[c] + insideUnaryScale[leftCell]);
+                    for (int left = 0; left < numStates; left++) {
+                        double leftScore = leftScores[left];
+                        if (leftScore == 0.0) continue;
+                        int end = grammar.binaryByLeftStart[left + 1];
+                        for (int k = grammar.binaryByLeftStart[left]; k < end; k++) {
+                            int rule = grammar.binaryByLeft[k];
+                            int right = grammar.binaryRight[rule];
+                            double rightScore = rightScores[right];
+                            if (rightScore == 0.0) continue;
+                            double outside = parentOutside[grammar.binaryParent[rule]];
+                            if (outside == 0.0) continue;
+                            double ruleOutside = outside * binaryProbability[rule];
+                            leftOutside[left]   += ruleOutside * rightScore * leftFactor;
+                            rightOutside[right] += ruleOutside * leftScore * rightFactor;
+                        }
+                    }
+                }
+            }
+        }
+
+        Constraints constraints = new Constraints();
+        constraints.fineToCoarse = fineToCoarse;
+        constraints.unary  = new boolean[n * n][];
+        constraints.binary = new boolean[n * n][];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                int c = i * n + j;
+                constraints.unary[c]  = survivors(insideUnary[c], outsideUnary[c], logThreshold + logTotal - insideUnaryScale[c] - outsideUnaryScale[c]);
+                constraints.binary[c] = survivors(insideBinary[c], outsideBinary[c], logThreshold + logTotal - insideBinaryScale[c] - outsideBinaryScale[c]);
+            }
+        }
+        return constraints;
+    }
+
+    /**
+     * Sums the closed unary rules over a cell's binary layer into its unary layer, then normalizes the unary layer and
+     * returns the log of the factor taken out of it.
+     */
+    private double sumUnaryInside(double[] childScores, double[] scores) {
+        for (int child = 0; child < childScores.length; child++) {
+            double childScore = childScores[child];
+            if (childScore == 0.0) continue;
+            int end = grammar.unaryByChildStart[child + 1];
+            for (int k = grammar.unaryByChildStart[child]; k < end; k++) {
+                int rule = grammar.unaryByChild[k];
+                scores[grammar.unaryParent[rule]] += unaryProbability[rule] * childScore;
+            }
+        }
+        return normalize(scores);
+    }
+
+    private double sumUnaryOutside(double[] parentOutside, double[] childInside, double[] childOutside) {
+        for (int child = 0; child < childInside.length; child++) {
+            if (childInside[child] == 0.0) continue;
+            int end = grammar.unaryByChildStart[child + 1];
+            for (int k = grammar.unaryByChildStart[child]; k < end; k++) {
+                int rule = grammar.unaryByChild[k];
+                childOutside[child] += parentOutside[grammar.unaryParent[rule]] * unaryProbability[rule];
+            }
+        }
+        return normalize(childOutside);
+    }
+
+    /**
+     * Divides the scores by their maximum and returns the log of that maximum (0 if the scores are all zero).
+     */
+    private static double normalize(double[] scores) {
+        double max = 0.0;
+        for (double score : scores) {
+            max = Math.max(max, score);
+        }
+        if (max == 0.0 || max == 1.0) return 0.0;
+        for (int state = 0; state < scores.length; state++) {
+            scores[state] /= max;
+        }
+        return Math.log(max);
+    }
+
+    /**
+     * Prepares cell c of a scaled chart to receive a contribution on log scale incoming: if that is larger than the
+     * cell's current scale the cell is rescaled up to it.  Returns the factor the contribution must be multiplied by.
+     */
+    private static double rescale(double[][] scores, double[] scales, int c, double incoming) {
+        if (incoming > scales[c]) {
+            double factor = Math.exp(scales[c] - incoming);
+            double[] cell = scores[c];
+            for (int state = 0; state < cell.length; state++) {
+                cell[state] *= factor;
+            }
+            scales[c] = incoming;
+            return 1.0;
+        }
+        return Math.exp(incoming - scales[c]);
+    }
+
+    /**
+     * States whose scaled inside * outside product reaches exp(logCutoff).
+     */
+    private static boolean[] survivors(double[] inside, double[] outside, double logCutoff) {
+        double cutoff = Math.exp(logCutoff);
+        boolean[] allowed = new boolean[inside.length];
+        for (int state = 0; state < inside.length; state++) {
+            double product = inside[state] * outside[state];
+            allowed[state] = product > 0.0 && product >= cutoff;
+        }
+        return allowed;
+    }
+}
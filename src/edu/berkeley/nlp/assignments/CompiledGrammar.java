@@ -0,0 +1,341 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.util.CollectionUtils;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Immutable, integer-indexed form of a Grammar and its UnaryClosure, laid out for the parser's inner loops.
+ *
+ * Every state is interned through an Indexer (in sorted label order, so the layout does not depend on hash iteration
+ * order).  Rules are stored struct-of-arrays style: rule r has parent binaryParent[r], children binaryLeft[r] and
+ * binaryRight[r], and log probability binaryScore[r].  Binary rules are sorted by parent, so the rules of parent p are
+ * the ids in [binaryByParentStart[p], binaryByParentStart[p + 1]).  The same rules grouped by left child are the ids
+ * binaryByLeft[binaryByLeftStart[l] .. binaryByLeftStart[l + 1]), and likewise binaryByRight by right child.  Closed
+ * unary rules follow the same scheme, grouped by parent and by child, and carry the full state path (parent first,
+ * child last) which they stand for, stored flat: rule r's path is unaryPathStates[unaryPathStart[r] ..
+ * unaryPathStart[r + 1]).
+ *
+ * For a chart which knows the states present in each cell, binary rules are also grouped by (left, right) child pair:
+ * pair g has right child binaryPairRight[g] and rules binaryByLeftRight[binaryPairStart[g] .. binaryPairStart[g + 1]),
+ * the pairs of left child l are [binaryPairsByLeftStart[l], binaryPairsByLeftStart[l + 1]) in right child order, and
+ * binaryLeftChildren is the bitset of states which are the left child of some rule, binaryLeftChildWords the indexes of
+ * its non-zero words.  So one bitset test of the right cell rules a whole pair in or out.  Within a parent, the rules
+ * sharing rule r's left child end at binaryLeftRunEnd[r].
+ *
+ * All scores are kept in the log domain, so parsers add them rather than multiplying probabilities which underflow
+ * on long sentences.
+ *
+ * @author Keith Stone
+ */
+public class CompiledGrammar {
+    final Indexer<String> states;
+
+    final int[]    binaryParent;
+    final int[]    binaryLeft;
+    final int[]    binaryRight;
+    final double[] binaryScore;
+    final int[]    binaryByParentStart;
+    final int[]    binaryByLeft;
+    final int[]    binaryByLeftStart;
+    final int[]    binaryByRight;
+    final int[]    binaryByRightStart;
+    final int[]    binaryByLeftRight;
+    final int[]    binaryPairStart;
+    final int[]    binaryPairRight;
+    final int[]    binaryPairsByLeftStart;
+    final long[]   binaryLeftChildren;
+    final int[]    binaryLeftChildWords;
+    final int[]    binaryLeftRunEnd;
+
+    final int[]    unaryParent;
+    final int[]    unaryChild;
+    final double[] unaryScore;
+    final int[]    unaryPathStart;
+    final int[]    unaryPathStates;
+    final int[]    unaryByParentStart;
+    final int[]    unaryByChild;
+    final int[]    unaryByChildStart;
+
+    public CompiledGrammar(PCFGParserTester.Grammar grammar, PCFGParserTester.UnaryClosure uc) {
+        Set<String> labels = new HashSet<String>(grammar.getStates());
+        labels.addAll(uc.states);
+        states = new Indexer<String>(CollectionUtils.sort(labels));
+        int numStates = states.size();
+
+        // Binary rules, ordered by (parent, left, right)
+        List<PCFGParserTester.BinaryRule> binaryRules = grammar.getBinaryRules();
+        int[][] binaryKeys = new int[binaryRules.size()][];
+        for (int r = 0; r < binaryKeys.length; r++) {
+            PCFGParserTester.BinaryRule rule = binaryRules.get(r);
+            binaryKeys[r] = new int[] {states.indexOf(rule.getParent()), states.indexOf(rule.getLeftChild()),
+                                       states.indexOf(rule.getRightChild()), r};
+        }
+        Arrays.sort(binaryKeys, KEY_ORDER);
+
+        int numBinary = binaryKeys.length;
+        binaryParent = new int[numBinary];
+        binaryLeft   = new int[numBinary];
+        binaryRight  = new int[numBinary];
+        binaryScore  = new double[numBinary];
+        for (int r = 0; r < numBinary; r++) {
+            binaryParent[r] = binaryKeys[r][0];
+            binaryLeft[r]   = binaryKeys[r][1];
+            binaryRight[r]  = binaryKeys[r][2];
+            binaryScore[r]  = Math.log(binaryRules.get(binaryKeys[r][3]).getScore());
+        }
+        binaryByParentStart = groupStarts(binaryParent, numStates);
+        binaryByLeftStart   = groupStarts(binaryLeft, numStates);
+        binaryByLeft        = groupBy(binaryLeft, binaryByLeftStart);
+        binaryByRightStart  = groupStarts(binaryRight, numStates);
+        binaryByRight       = groupBy(binaryRight, binaryByRightStart);
+        binaryByLeftRight   = groupBy(binaryByRight, binaryLeft, binaryByLeftStart);
+        binaryPairStart     = runStarts(binaryByLeftRight, binaryLeft, binaryRight);
+        binaryPairRight     = runKeys(binaryPairStart, binaryByLeftRight, binaryRight);
+        binaryPairsByLeftStart = groupStarts(runKeys(binaryPairStart, binaryByLeftRight, binaryLeft), numStates);
+        binaryLeftChildren  = nonEmptyGroups(binaryByLeftStart);
+        binaryLeftChildWords = nonZeroWords(binaryLeftChildren);
+        binaryLeftRunEnd    = runEnds(binaryParent, binaryLeft);
+
+        // Closed unary rules, ordered by (parent, child).  The closure's states are a subset of ours, in the same
+        // sorted order, so its rule order carries over unchanged.
+        int[] closureStates = new int[uc.states.size()];
+        for (int s = 0; s < closureStates.length; s++) {
+            closureStates[s] = states.indexOf(uc.states.get(s));
+        }
+        int numUnary = uc.numRules();
+        unaryParent = new int[numUnary];
+        unaryChild  = new int[numUnary];
+        unaryScore  = new double[numUnary];
+        unaryPathStart  = Arrays.copyOf(uc.pathStarts, numUnary + 1);
+        unaryPathStates = new int[uc.pathStates.length];
+        for (int r = 0; r < numUnary; r++) {
+            unaryParent[r] = closureStates[uc.parents[r]];
+            unaryChild[r]  = closureStates[uc.children[r]];
+            unaryScore[r]  = Math.log(uc.scores[r]);
+        }
+        for (int k = 0; k < unaryPathStates.length; k++) {
+            unaryPathStates[k] = closureStates[uc.pathStates[k]];
+        }
+        unaryByParentStart = groupStarts(unaryParent, numStates);
+        unaryByChildStart  = groupStarts(unaryChild, numStates);
+        unaryByChild       = groupBy(unaryChild, unaryByChildStart);
+    }
+
+    /**
+     * Reads a grammar saved by write().  The rule groupings are rebuilt rather than stored.
+     */
+    CompiledGrammar(ByteBuffer in) {
+        states = new Indexer<String>(Arrays.asList(ParserModel.readStrings(in)));
+        int numStates = states.size();
+
+        binaryParent = ParserModel.readInts(in);
+        binaryLeft   = ParserModel.readInts(in);
+        binaryRight  = ParserModel.readInts(in);
+        binaryScore  = ParserModel.readDoubles(in);
+        binaryByParentStart = groupStarts(binaryParent, numStates);
+        binaryByLeftStart   = groupStarts(binaryLeft, numStates);
+        binaryByLeft        = groupBy(binaryLeft, binaryByLeftStart);
+        binaryByRightStart  = groupStarts(binaryRight, numStates);
+        binaryByRight       = groupBy(binaryRight, binaryByRightStart);
+        binaryByLeftRight   = groupBy(binaryByRight, binaryLeft, binaryByLeftStart);
+        binaryPairStart     = runStarts(binaryByLeftRight, binaryLeft, binaryRight);
+        binaryPairRight     = runKeys(binaryPairStart, binaryByLeftRight, binaryRight);
+        binaryPairsByLeftStart = groupStarts(runKeys(binaryPairStart, binaryByLeftRight, binaryLeft), numStates);
+        binaryLeftChildren  = nonEmptyGroups(binaryByLeftStart);
+        binaryLeftChildWords = nonZeroWords(binaryLeftChildren);
+        binaryLeftRunEnd    = runEnds(binaryParent, binaryLeft);
+
+        unaryParent = ParserModel.readInts(in);
+        unaryChild  = ParserModel.readInts(in);
+        unaryScore  = ParserModel.readDoubles(in);
+        // Paths are saved one per rule
+        unaryPathStart = new int[unaryParent.length + 1];
+        List<int[]> paths = new ArrayList<int[]>(unaryParent.length);
+        for (int r = 0; r < unaryParent.length; r++) {
+            int[] path = ParserModel.readInts(in);
+            paths.add(path);
+            unaryPathStart[r + 1] = unaryPathStart[r] + path.length;
+        }
+        unaryPathStates = new int[unaryPathStart[unaryParent.length]];
+        for (int r = 0; r < unaryParent.length; r++) {
+            System.arraycopy(paths.get(r), 0, unaryPathStates, unaryPathStart[r], paths.get(r).length);
+        }
+        unaryByParentStart = groupStarts(unaryParent, numStates);
+        unaryByChildStart  = groupStarts(unaryChild, numStates);
+        unaryByChild       = groupBy(unaryChild, unaryByChildStart);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        ParserModel.writeStrings(out, states.toArray(new String[states.size()]));
+        ParserModel.writeInts(out, binaryParent);
+        ParserModel.writeInts(out, binaryLeft);
+        ParserModel.writeInts(out, binaryRight);
+        ParserModel.writeDoubles(out, binaryScore);
+        ParserModel.writeInts(out, unaryParent);
+        ParserModel.writeInts(out, unaryChild);
+        ParserModel.writeDoubles(out, unaryScore);
+        for (int r = 0; r < unaryParent.length; r++) {
+            ParserModel.writeInts(out, Arrays.copyOfRange(unaryPathStates, unaryPathStart[r], unaryPathStart[r + 1]));
+        }
+    }
+
+    private static final Comparator<int[]> KEY_ORDER = new Comparator<int[]>() {
+        public int compare(int[] a, int[] b) {
+            for (int k = 0; k < a.length; k++) {
+                if (a[k] != b[k]) return a[k] < b[k] ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Offsets of each key's group when the rules are bucketed by that key: group k spans [starts[k], starts[k + 1]).
+     */
+    static int[] groupStarts(int[] keys, int numKeys) {
+        int[] starts = new int[numKeys + 1];
+        for (int key : keys) {
+            starts[key + 1]++;
+        }
+        for (int k = 0; k < numKeys; k++) {
+            starts[k + 1] += starts[k];
+        }
+        return starts;
+    }
+
+    /**
+     * Rule ids bucketed by key (stable, so each bucket keeps rule id order).
+     */
+    static int[] groupBy(int[] keys, int[] starts) {
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        int[] grouped = new int[keys.length];
+        for (int r = 0; r < keys.length; r++) {
+            grouped[next[keys[r]]++] = r;
+        }
+        return grouped;
+    }
+
+    /**
+     * The rule ids of order bucketed by key, stably, so each bucket keeps their order in order.
+     */
+    static int[] groupBy(int[] order, int[] keys, int[] starts) {
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        int[] grouped = new int[order.length];
+        for (int r : order) {
+            grouped[next[keys[r]]++] = r;
+        }
+        return grouped;
+    }
+
+    /**
+     * Offsets into order at which either key changes, followed by order.length: run g spans [starts[g], starts[g + 1]).
+     */
+    static int[] runStarts(int[] order, int[] firstKeys, int[] secondKeys) {
+        int[] starts = new int[order.length + 1];
+        int runs = 0;
+        for (int k = 0; k < order.length; k++) {
+            if (k == 0 || firstKeys[order[k]] != firstKeys[order[k - 1]] ||
+                    secondKeys[order[k]] != secondKeys[order[k - 1]]) {
+                starts[runs++] = k;
+            }
+        }
+        starts[runs] = order.length;
+        return Arrays.copyOf(starts, runs + 1);
+    }
+
+    /**
+     * The key shared by the rules of each run.
+     */
+    static int[] runKeys(int[] runStarts, int[] order, int[] keys) {
+        int[] runKeys = new int[runStarts.length - 1];
+        for (int g = 0; g < runKeys.length; g++) {
+            runKeys[g] = keys[order[runStarts[g]]];
+        }
+        return runKeys;
+    }
+
+    /**
+     * For each rule id, the end of the run of consecutive ids which share both its keys.
+     */
+    static int[] runEnds(int[] firstKeys, int[] secondKeys) {
+        int[] ends = new int[firstKeys.length];
+        for (int r = firstKeys.length - 1; r >= 0; r--) {
+            boolean last = r == firstKeys.length - 1 ||
+                    firstKeys[r + 1] != firstKeys[r] || secondKeys[r + 1] != secondKeys[r];
+            ends[r] = last ? r + 1 : ends[r + 1];
+        }
+        return ends;
+    }
+
+    /**
+     * Bitset of the keys which have at least one rule.
+     */
+    static long[] nonEmptyGroups(int[] starts) {
+        long[] keys = new long[(starts.length - 1 + 63) >>> 6];
+        for (int k = 0; k + 1 < starts.length; k++) {
+            if (starts[k + 1] > starts[k]) keys[k >>> 6] |= 1L << k;
+        }
+        return keys;
+    }
+
+    static int[] nonZeroWords(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            if (word != 0) count++;
+        }
+        int[] words = new int[count];
+        int k = 0;
+        for (int w = 0; w < bits.length; w++) {
+            if (bits[w] != 0) words[k++] = w;
+        }
+        return words;
+    }
+
+    public int numStates() {
+        return states.size();
+    }
+
+    public Indexer<String> getStates() {
+        return states;
+    }
+
+    public int getState(String label) {
+        return states.indexOf(label);
+    }
+
+    public String getLabel(int state) {
+        return states.get(state);
+    }
+
+    /**
+     * Id of the closed unary rule parent -> child, or -1 if the closure has no such rule.
+     */
+    public int findUnaryRule(int parent, int child) {
+        if (parent < 0 || child < 0) return -1;
+        int low  = unaryByParentStart[parent];
+        int high = unaryByParentStart[parent + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (unaryChild[mid] < child) {
+                low = mid + 1;
+            } else if (unaryChild[mid] > child) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public List<String> getUnaryPath(int rule) {
+        List<String> path = new ArrayList<String>(unaryPathStart[rule + 1] - unaryPathStart[rule]);
+        for (int k = unaryPathStart[rule]; k < unaryPathStart[rule + 1]; k++) {
+            path.add(states.get(unaryPathStates[k]));
+        }
+        return path;
+    }
+}
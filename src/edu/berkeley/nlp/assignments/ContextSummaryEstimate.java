@@ -0,0 +1,121 @@
+package edu.berkeley.nlp.assignments;
+
+import java.util.*;
+
+/**
+ * The SX context summary outside estimate: for each state and number of words outside its span, the best outside score
+ * any context of that size could give it.  It is computed from the grammar alone, scoring every sibling with the best
+ * inside score any span of its length could have, so it never underestimates a real outside score.  Estimates are kept
+ * for the two layers of a chart cell (the binary or tag layer below the unary closure and the unary layer above it) and
+ * are extended on demand to the longest sentence seen so far.
+ *
+ * @author Keith Stone
+ */
+public class ContextSummaryEstimate {
+    static final int BINARY = 0;
+    static final int UNARY  = 1;
+
+    CompiledGrammar          grammar;
+    int[]                    rootStates;
+    PCFGParserTester.Lexicon lexicon;
+    int[]                    lexiconTags;
+
+    // outsideEstimates[layer][outsideWords][state]
+    double[][][] outsideEstimates;
+    int          estimateLength;
+
+    public ContextSummaryEstimate(CompiledGrammar grammar, int[] rootStates, PCFGParserTester.Lexicon lexicon, int[] lexiconTags) {
+        this.grammar     = grammar;
+        this.rootStates  = rootStates;
+        this.lexicon     = lexicon;
+        this.lexiconTags = lexiconTags;
+    }
+
+    /**
+     * Outside estimates for every number of outside words up to at least n - 1, computing them if necessary.
+     */
+    public synchronized double[][][] getEstimates(int n) {
+        if (n > estimateLength) {
+            computeEstimates(Math.max(n, 2 * estimateLength));
+        }
+        return outsideEstimates;
+    }
+
+    private void computeEstimates(int maxLength) {
+        int numStates = grammar.numStates();
+
+        // Best inside score of each state over any span of each length
+        double[][][] inside = new double[2][maxLength + 1][];
+        for (int length = 1; length <= maxLength; length++) {
+            inside[BINARY][length] = newScores(numStates);
+            inside[UNARY][length]  = newScores(numStates);
+        }
+        Collection<double[]> wordScores = lexicon.getAllLogScores();
+        for (int state = 0; state < numStates; state++) {
+            int tag = lexiconTags[state];
+            if (tag < 0) continue;
+            for (double[] logScores : wordScores) {
+                inside[BINARY][1][state] = Math.max(inside[BINARY][1][state], logScores[tag]);
+            }
+        }
+        closeInside(inside[BINARY][1], inside[UNARY][1]);
+        for (int length = 2; length <= maxLength; length++) {
+            double[] scores = inside[BINARY][length];
+            for (int leftLength = 1; leftLength < length; leftLength++) {
+                double[] leftScores  = inside[UNARY][leftLength];
+                double[] rightScores = inside[UNARY][length - leftLength];
+                for (int rule = 0; rule < grammar.binaryParent.length; rule++) {
+                    double score = grammar.binaryScore[rule] + leftScores[grammar.binaryLeft[rule]] + rightScores[grammar.binaryRight[rule]];
+                    if (score > scores[grammar.binaryParent[rule]]) scores[grammar.binaryParent[rule]] = score;
+                }
+            }
+            closeInside(scores, inside[UNARY][length]);
+        }
+
+        // Best outside score of each state with a given number of words outside it
+        double[][][] outside = new double[2][maxLength][];
+        for (int outsideWords = 0; outsideWords < maxLength; outsideWords++) {
+            double[] unaryScores = newScores(numStates);
+            if (outsideWords == 0) {
+                for (int state : rootStates) {
+                    if (state >= 0) unaryScores[state] = 0.0;
+                }
+            }
+            for (int siblingLength = 1; siblingLength <= outsideWords; siblingLength++) {
+                double[] parentScores  = outside[BINARY][outsideWords - siblingLength];
+                double[] siblingScores = inside[UNARY][siblingLength];
+                for (int rule = 0; rule < grammar.binaryParent.length; rule++) {
+                    double parentScore = parentScores[grammar.binaryParent[rule]] + grammar.binaryScore[rule];
+                    if (parentScore == Double.NEGATIVE_INFINITY) continue;
+                    double leftScore  = parentScore + siblingScores[grammar.binaryRight[rule]];
+                    double rightScore = parentScore + siblingScores[grammar.binaryLeft[rule]];
+                    if (leftScore > unaryScores[grammar.binaryLeft[rule]]) unaryScores[grammar.binaryLeft[rule]] = leftScore;
+                    if (rightScore > unaryScores[grammar.binaryRight[rule]]) unaryScores[grammar.binaryRight[rule]] = rightScore;
+                }
+            }
+            double[] binaryScores = newScores(numStates);
+            for (int rule = 0; rule < grammar.unaryParent.length; rule++) {
+                double score = unaryScores[grammar.unaryParent[rule]] + grammar.unaryScore[rule];
+                if (score > binaryScores[grammar.unaryChild[rule]]) binaryScores[grammar.unaryChild[rule]] = score;
+            }
+            outside[UNARY][outsideWords]  = unaryScores;
+            outside[BINARY][outsideWords] = binaryScores;
+        }
+
+        outsideEstimates = outside;
+        estimateLength = maxLength;
+    }
+
+    private void closeInside(double[] childScores, double[] scores) {
+        for (int rule = 0; rule < grammar.unaryParent.length; rule++) {
+            double score = grammar.unaryScore[rule] + childScores[grammar.unaryChild[rule]];
+            if (score > scores[grammar.unaryParent[rule]]) scores[grammar.unaryParent[rule]] = score;
+        }
+    }
+
+    private static double[] newScores(int numStates) {
+        double[] scores = new double[numStates];
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        return scores;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+import edu.berkeley.nlp.util.CollectionUtils;
+
+import java.util.*;
+
+/**
+ * Merges the states of a trained Grammar which rewrite identically, so that every chart cell has fewer states.
+ *
+ * Markovized annotation produces many states with the same rule distribution: intermediate symbols whose longer
+ * history never changes how they expand, parent-annotated symbols which rewrite alike under different parents.  Two
+ * states are equivalent when, reading their children as equivalence classes, they give every rewrite the same
+ * probability.  Equivalent states have the same Viterbi score over every span, so one of them can stand for all.
+ *
+ * Classes are found by partition refinement.  The first partition has a block per bare symbol, so that the states of a
+ * class unannotate (TreeAnnotations.unAnnotateTree()) and project onto the coarse grammar (projectLabel()) alike; the
+ * lexicon's tags and the root states, which the parser treats specially, each get a block of their own.  Blocks are
+ * then split by their states' distributions over the current blocks until none splits.  With a tolerance,
+ * probabilities are compared on a grid of that width in the log domain, so that nearly equal distributions merge too.
+ *
+ * A class is represented by its first member in label order, whose rules are rewritten onto the representatives.
+ * Rewrites which become the same rule keep the best of their probabilities, both when comparing distributions and in
+ * the rules emitted: every parser here is Viterbi, and the best derivation through a merged rule scores exactly what
+ * the best of the rules it replaces did.  (Summing them would be right for inside scores, but would inflate Viterbi
+ * scores and could change the best parse.)  So with no tolerance the minimized grammar gives the same best parses,
+ * although its distributions may no longer sum to one.  A unary rewrite of a class to itself is dropped, as it can
+ * never improve a Viterbi score.  The representative's label is one of its class's own labels, which all unannotate
+ * and project alike, so parses come out with the same unannotated labels and no mapping back is needed.
+ *
+ * @author Keith Stone
+ */
+public class GrammarMinimizer {
+    final PCFGParserTester.Grammar grammar;
+    final int statesBefore, binaryBefore, unaryBefore;
+    int       rounds;
+
+    /**
+     * One distinct rewrite of a state, with its children named by block or by representative.
+     */
+    private static class Rewrite implements Comparable<Rewrite> {
+        final String left, right;   // right is null for a unary rewrite
+        double score;
+
+        Rewrite(String left, String right, double score) {
+            this.left = left;
+            this.right = right;
+            this.score = score;
+        }
+
+        boolean sameChildren(Rewrite other) {
+            return left.equals(other.left) && (right == null ? other.right == null : right.equals(other.right));
+        }
+
+        public int compareTo(Rewrite other) {
+            if (right == null && other.right != null) return -1;
+            if (right != null && other.right == null) return 1;
+            int c = left.compareTo(other.left);
+            if (c == 0 && right != null) c = right.compareTo(other.right);
+            if (c == 0) c = Double.compare(score, other.score);
+            return c;
+        }
+    }
+
+    /**
+     * @param fixedStates states which are never merged with any other
+     * @param tolerance   width of the log probability grid on which distributions are compared, 0 for exact
+     */
+    public GrammarMinimizer(PCFGParserTester.Grammar original, Set<String> fixedStates, double tolerance) {
+        List<String> labels = CollectionUtils.sort(original.getStates());
+        int n = labels.size();
+        statesBefore = n;
+        binaryBefore = original.getBinaryRules().size();
+        unaryBefore  = original.getUnaryRules().size();
+
+        int[] block = new int[n];
+        Map<String, Integer> blockIds = new HashMap<String, Integer>();
+        for (int s = 0; s < n; s++) {
+            String label = labels.get(s);
+            block[s] = blockId(blockIds, fixedStates.contains(label) ? "=" + label : bareSymbol(label));
+        }
+        int numBlocks = blockIds.size();
+
+        // Each round keys a state by its block and its distribution over blocks; the partition is stable once a round
+        // splits nothing
+        Map<String, String> names = new HashMap<String, String>();
+        while (true) {
+            rounds++;
+            for (int s = 0; s < n; s++) {
+                names.put(labels.get(s), Integer.toString(block[s]));
+            }
+            Map<String, Integer> refinedIds = new HashMap<String, Integer>();
+            int[] refined = new int[n];
+            for (int s = 0; s < n; s++) {
+                StringBuilder key = new StringBuilder().append(block[s]);
+                for (Rewrite rewrite : getRewrites(original, labels.get(s), names)) {
+                    key.append('|').append(rewrite.left).append(',').append(rewrite.right).append('=');
+                    if (tolerance > 0) {
+                        key.append(Math.round(Math.log(rewrite.score) / tolerance));
+                    } else {
+                        key.append(rewrite.score);
+                    }
+                }
+                refined[s] = blockId(refinedIds, key.toString());
+            }
+            block = refined;
+            if (refinedIds.size() == numBlocks) break;
+            numBlocks = refinedIds.size();
+        }
+
+        String[] blockRepresentatives = new String[numBlocks];
+        Map<String, String> representatives = new HashMap<String, String>();
+        for (int s = 0; s < n; s++) {
+            if (blockRepresentatives[block[s]] == null) blockRepresentatives[block[s]] = labels.get(s);
+            representatives.put(labels.get(s), blockRepresentatives[block[s]]);
+        }
+
+        List<PCFGParserTester.UnaryRule>  unaryRules  = new ArrayList<PCFGParserTester.UnaryRule>();
+        List<PCFGParserTester.BinaryRule> binaryRules = new ArrayList<PCFGParserTester.BinaryRule>();
+        for (String parent : blockRepresentatives) {
+            for (Rewrite rewrite : getRewrites(original, parent, representatives)) {
+                if (rewrite.right != null) {
+                    PCFGParserTester.BinaryRule rule = new PCFGParserTester.BinaryRule(parent, rewrite.left, rewrite.right);
+                    rule.setScore(rewrite.score);
+                    binaryRules.add(rule);
+                } else if (!rewrite.left.equals(parent)) {
+                    PCFGParserTester.UnaryRule rule = new PCFGParserTester.UnaryRule(parent, rewrite.left);
+                    rule.setScore(rewrite.score);
+                    unaryRules.add(rule);
+                }
+            }
+        }
+        grammar = new PCFGParserTester.Grammar(unaryRules, binaryRules);
+    }
+
+    public String toString() {
+        return String.format("%d -> %d states, %d -> %d binary rules, %d -> %d unary rules (%d refinement rounds)",
+                statesBefore, grammar.getStates().size(), binaryBefore, grammar.getBinaryRules().size(),
+                unaryBefore, grammar.getUnaryRules().size(), rounds);
+    }
+
+    /**
+     * The rewrites of a state with its children renamed, sorted by children, keeping the best score of those which
+     * coincide.
+     */
+    private static List<Rewrite> getRewrites(PCFGParserTester.Grammar grammar, String state, Map<String, String> names) {
+        List<Rewrite> rewrites = new ArrayList<Rewrite>();
+        for (PCFGParserTester.BinaryRule rule : grammar.getBinaryRulesByParent(state)) {
+            rewrites.add(new Rewrite(names.get(rule.getLeftChild()), names.get(rule.getRightChild()), rule.getScore()));
+        }
+        for (PCFGParserTester.UnaryRule rule : grammar.getUnaryRulesByParent(state)) {
+            rewrites.add(new Rewrite(names.get(rule.getChild()), null, rule.getScore()));
+        }
+        Collections.sort(rewrites);
+        List<Rewrite> best = new ArrayList<Rewrite>(rewrites.size());
+        for (Rewrite rewrite : rewrites) {
+            Rewrite last = best.isEmpty() ? null : best.get(best.size() - 1);
+            if (last != null && last.sameChildren(rewrite)) {
+                last.score = Math.max(last.score, rewrite.score);
+            } else {
+                best.add(rewrite);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * What the first partition keys a state by: its coarse projection and, unless it is an intermediate symbol (which
+     * unannotation splices out), its unannotated label.
+     */
+    private static String bareSymbol(String label) {
+        String projected = PCFGParserTester.TreeAnnotations.projectLabel(label);
+        if (label.startsWith("@")) return projected;
+        Tree<String> node = new Tree<String>(label, Collections.singletonList(new Tree<String>(label)));
+        return projected + " " + Trees.FunctionNodeStripper.transformLabel(node);
+    }
+
+    private static int blockId(Map<String, Integer> ids, String key) {
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size();
+            ids.put(key, id);
+        }
+        return id;
+    }
+}
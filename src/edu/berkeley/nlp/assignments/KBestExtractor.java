@@ -0,0 +1,257 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Pair;
+
+import java.util.*;
+
+/**
+ * Lazy k-best derivation enumeration over a filled Viterbi chart (Huang and Chiang, 2005, algorithm 3).
+ *
+ * The chart is read as a hypergraph whose nodes are (layer, span, state) entries with a finite score: a unary-layer
+ * node is built by a closed unary rule over the binary-layer node of the same span (or over a tag, for a single word),
+ * and a binary-layer node by a binary rule and split point over two unary-layer nodes.  The chart's scores are exactly
+ * the 1-best derivation scores of those nodes, so a node's incoming edges can be scored without any further parsing.
+ *
+ * Each node touched keeps its derivations found so far, best first, as backpointers of the form (rule, split, rank of
+ * each child's derivation), and a heap of candidate derivations.  The heap starts with the best derivation along every
+ * incoming edge; whenever a derivation is taken from it, its successors (one child moved to its next best derivation)
+ * are pushed, asking the child for that derivation only then.  Only nodes on the path of some popped derivation are
+ * ever expanded, so the k best parses cost little more than reading back the best one.
+ *
+ * @author Keith Stone
+ */
+public class KBestExtractor {
+    private static final int UNARY  = 0;
+    private static final int BINARY = 1;
+    private static final int TOP    = 2;
+
+    CKYParser    parser;
+    List<String> sentence;
+    TreeCache    tc;
+    Node[][][]   nodes;   // [layer][cell][state], each cell allocated when first touched
+    Node         top;
+
+    /**
+     * Derivations are ordered best first, ties broken by rule, split and child ranks so the order is deterministic.
+     */
+    private static final Comparator<Derivation> BEST_FIRST = new Comparator<Derivation>() {
+        public int compare(Derivation a, Derivation b) {
+            if (a.score != b.score) return a.score > b.score ? -1 : 1;
+            if (a.rule != b.rule) return a.rule < b.rule ? -1 : 1;
+            if (a.split != b.split) return a.split < b.split ? -1 : 1;
+            if (a.leftRank != b.leftRank) return a.leftRank < b.leftRank ? -1 : 1;
+            return a.rightRank < b.rightRank ? -1 : (a.rightRank == b.rightRank ? 0 : 1);
+        }
+    };
+
+    /**
+     * One derivation of a node: the incoming edge (a rule, plus its split point for binary rules) and the rank of the
+     * derivation used for each child.  At the top node the rule is the root state.
+     */
+    private static class Derivation {
+        final int    rule, split, leftRank, rightRank;
+        final double score;
+
+        Derivation(int rule, int split, int leftRank, int rightRank, double score) {
+            this.rule = rule;
+            this.split = split;
+            this.leftRank = leftRank;
+            this.rightRank = rightRank;
+            this.score = score;
+        }
+    }
+
+    private static class Node {
+        final int layer, i, j, state;
+        final List<Derivation> derivations = new ArrayList<Derivation>();
+        PriorityQueue<Derivation> candidates;
+
+        Node(int layer, int i, int j, int state) {
+            this.layer = layer;
+            this.i = i;
+            this.j = j;
+            this.state = state;
+        }
+    }
+
+    /**
+     * @param tc a chart in which every root state over the whole sentence has been scored
+     */
+    public KBestExtractor(CKYParser parser, List<String> sentence, TreeCache tc) {
+        this.parser = parser;
+        this.sentence = sentence;
+        this.tc = tc;
+        int cells = sentence.size() * sentence.size();
+        nodes = new Node[2][cells][];
+        top = new Node(TOP, 0, sentence.size() - 1, -1);
+    }
+
+    /**
+     * The k best parses, best first, with their log scores.  Fewer are returned if the chart has fewer derivations; if
+     * it has none, the list holds the parser's default parse scored as negative infinity.
+     */
+    public List<Pair<Tree<String>, Double>> extract(int k) {
+        List<Pair<Tree<String>, Double>> parses = new ArrayList<Pair<Tree<String>, Double>>();
+        for (int rank = 0; rank < k; rank++) {
+            Derivation derivation = getDerivation(top, rank);
+            if (derivation == null) break;
+            Tree<String> annotatedTree = buildTree(top, rank);
+            parser.normalize_structure(annotatedTree);
+            Tree<String> tree = PCFGParserTester.TreeAnnotations.unAnnotateTree(annotatedTree);
+            parses.add(new Pair<Tree<String>, Double>(tree, derivation.score));
+        }
+        if (parses.isEmpty() && k > 0) {
+            Tree<String> tree = PCFGParserTester.TreeAnnotations.unAnnotateTree(parser.default_parse(sentence));
+            parses.add(new Pair<Tree<String>, Double>(tree, Double.NEGATIVE_INFINITY));
+        }
+        return parses;
+    }
+
+    private Node getNode(int layer, int i, int j, int state) {
+        int c = tc.cell(i, j);
+        Node[] cellNodes = nodes[layer][c];
+        if (cellNodes == null) {
+            cellNodes = nodes[layer][c] = new Node[parser.grammar.numStates()];
+        }
+        Node node = cellNodes[state];
+        if (node == null) {
+            node = cellNodes[state] = new Node(layer, i, j, state);
+        }
+        return node;
+    }
+
+    /**
+     * The rank-th best derivation of a node (0 for the best), or null if it has no more than rank derivations.
+     */
+    private Derivation getDerivation(Node node, int rank) {
+        if (node.candidates == null) {
+            node.candidates = new PriorityQueue<Derivation>(11, BEST_FIRST);
+            addFirstCandidates(node);
+        }
+        while (node.derivations.size() <= rank) {
+            if (!node.derivations.isEmpty()) {
+                addSuccessors(node, node.derivations.get(node.derivations.size() - 1));
+            }
+            Derivation next = node.candidates.poll();
+            if (next == null) return null;
+            node.derivations.add(next);
+        }
+        return node.derivations.get(rank);
+    }
+
+    /**
+     * The best derivation along each incoming edge of the node, read off the chart.
+     */
+    private void addFirstCandidates(Node node) {
+        CompiledGrammar grammar = parser.grammar;
+        List<Derivation> first = new ArrayList<Derivation>();
+        if (node.layer == TOP) {
+            for (int state : parser.rootStates) {
+                if (state < 0) continue;
+                double score = unaryScore(node.i, node.j, state);
+                if (score > Double.NEGATIVE_INFINITY) first.add(new Derivation(state, -1, 0, 0, score));
+            }
+        } else if (node.layer == UNARY) {
+            int end = grammar.unaryByParentStart[node.state + 1];
+            for (int rule = grammar.unaryByParentStart[node.state]; rule < end; rule++) {
+                double childScore = node.i == node.j ? tagScore(node.i, grammar.unaryChild[rule])
+                                                     : binaryScore(node.i, node.j, grammar.unaryChild[rule]);
+                if (childScore == Double.NEGATIVE_INFINITY) continue;
+                first.add(new Derivation(rule, -1, 0, 0, grammar.unaryScore[rule] + childScore));
+            }
+        } else {
+            int start = grammar.binaryByParentStart[node.state];
+            int end   = grammar.binaryByParentStart[node.state + 1];
+            for (int s = node.i + 1; s <= node.j; s++) {
+                for (int rule = start; rule < end; rule++) {
+                    double leftScore = unaryScore(node.i, s - 1, grammar.binaryLeft[rule]);
+                    if (leftScore == Double.NEGATIVE_INFINITY) continue;
+                    double rightScore = unaryScore(s, node.j, grammar.binaryRight[rule]);
+                    if (rightScore == Double.NEGATIVE_INFINITY) continue;
+                    first.add(new Derivation(rule, s, 0, 0, grammar.binaryScore[rule] + leftScore + rightScore));
+                }
+            }
+        }
+        node.candidates.addAll(first);
+    }
+
+    /**
+     * Pushes the derivations which use the next best derivation of one child of the given one.  The left child only
+     * advances while the right child is at its best, so every combination of ranks is pushed exactly once.
+     */
+    private void addSuccessors(Node node, Derivation derivation) {
+        CompiledGrammar grammar = parser.grammar;
+        if (node.layer == TOP) {
+            Derivation child = getDerivation(getNode(UNARY, node.i, node.j, derivation.rule), derivation.leftRank + 1);
+            if (child != null) node.candidates.add(new Derivation(derivation.rule, -1, derivation.leftRank + 1, 0, child.score));
+        } else if (node.layer == UNARY) {
+            if (node.i == node.j) return;
+            Node childNode = getNode(BINARY, node.i, node.j, grammar.unaryChild[derivation.rule]);
+            Derivation child = getDerivation(childNode, derivation.leftRank + 1);
+            if (child != null) {
+                double score = grammar.unaryScore[derivation.rule] + child.score;
+                node.candidates.add(new Derivation(derivation.rule, -1, derivation.leftRank + 1, 0, score));
+            }
+        } else {
+            int rule = derivation.rule, s = derivation.split;
+            Node leftNode  = getNode(UNARY, node.i, s - 1, grammar.binaryLeft[rule]);
+            Node rightNode = getNode(UNARY, s, node.j, grammar.binaryRight[rule]);
+            if (derivation.rightRank == 0) {
+                Derivation left = getDerivation(leftNode, derivation.leftRank + 1);
+                if (left != null) {
+                    double score = grammar.binaryScore[rule] + left.score + getDerivation(rightNode, 0).score;
+                    node.candidates.add(new Derivation(rule, s, derivation.leftRank + 1, 0, score));
+                }
+            }
+            Derivation right = getDerivation(rightNode, derivation.rightRank + 1);
+            if (right != null) {
+                double score = grammar.binaryScore[rule] + getDerivation(leftNode, derivation.leftRank).score + right.score;
+                node.candidates.add(new Derivation(rule, s, derivation.leftRank, derivation.rightRank + 1, score));
+            }
+        }
+    }
+
+    private Tree<String> buildTree(Node node, int rank) {
+        CompiledGrammar grammar = parser.grammar;
+        Derivation derivation = getDerivation(node, rank);
+        if (node.layer == TOP) {
+            return buildTree(getNode(UNARY, node.i, node.j, derivation.rule), derivation.leftRank);
+        }
+        String label = grammar.getLabel(node.state);
+        if (node.layer == UNARY) {
+            int childState = grammar.unaryChild[derivation.rule];
+            Tree<String> child;
+            if (node.i == node.j) {
+                Tree<String> word = new Tree<String>(sentence.get(node.i));
+                child = new Tree<String>(grammar.getLabel(childState), Collections.singletonList(word));
+            } else {
+                child = buildTree(getNode(BINARY, node.i, node.j, childState), derivation.leftRank);
+            }
+            return new Tree<String>(label, Collections.singletonList(child));
+        }
+        int s = derivation.split;
+        List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+        children.add(buildTree(getNode(UNARY, node.i, s - 1, grammar.binaryLeft[derivation.rule]), derivation.leftRank));
+        children.add(buildTree(getNode(UNARY, s, node.j, grammar.binaryRight[derivation.rule]), derivation.rightRank));
+        return new Tree<String>(label, children);
+    }
+
+    /**
+     * Chart scores, with entries that were never scored (the top-down parser only scores what it probes) or whose
+     * cell was never opened read as unbuildable.
+     */
+    private double unaryScore(int i, int j, int state) {
+        double[] scores = tc.unaryScores[tc.cell(i, j)];
+        return scores == null || Double.isNaN(scores[state]) ? Double.NEGATIVE_INFINITY : scores[state];
+    }
+
+    private double binaryScore(int i, int j, int state) {
+        double[] scores = tc.binaryScores[tc.cell(i, j)];
+        return scores == null || Double.isNaN(scores[state]) ? Double.NEGATIVE_INFINITY : scores[state];
+    }
+
+    private double tagScore(int i, int state) {
+        return tc.tags.score(i, parser.lexiconTags[state]);
+    }
+}
@@ -7,7 +7,12 @@ import edu.berkeley.nlp.parser.EnglishPennTreebankParseEvaluator;
 import edu.berkeley.nlp.util.*;
 
 import java.sql.Time;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Harness for PCFG Parser project.
@@ -156,26 +161,42 @@ public class PCFGParserTester {
    * unannotating them for scoring.
    */
   static class TreeAnnotations {
+    /**
+     * The annotation state of the node being binarized: its vertical ancestors (itself last) and, for each open level,
+     * the siblings generated so far.  Labels are composed as AnnotationLabels nodes, found when first asked for and
+     * remembered for each ancestor and sibling, so that neither the contexts nor their labels are rebuilt per node.
+     */
     public static class MarkovContext {
-        List<String> vertical_ancestors;
-        List<String> horizontal_ancestors;
-        Deque<List<String>> higher_order_siblings;
+        // Vertical ancestors, root first, and the label node of the window ending at each (null until needed)
+        String[]                vertical_ancestors = new String[16];
+        AnnotationLabels.Node[] parent_nodes       = new AnnotationLabels.Node[16];
+        int                     depth;
+
+        // Horizontal ancestors of every open level, innermost level last, and the label node of the window ending at
+        // each (null until needed); the level of the ancestor at depth d starts at sibling_starts[d]
+        String[]                horizontal_ancestors = new String[16];
+        AnnotationLabels.Node[] sibling_nodes        = new AnnotationLabels.Node[16];
+        int[]                   sibling_starts       = new int[16];
+        int                     num_siblings;
 
         int vertical_markovization;
         int horizontal_markovization;
         boolean markUnaryRewrites = false;
+        final AnnotationLabels labels;
 
         public MarkovContext(int vertical_markovization, int horizontal_markovization) {
+            this(vertical_markovization, horizontal_markovization, new AnnotationLabels());
+        }
+
+        private MarkovContext(int vertical_markovization, int horizontal_markovization, AnnotationLabels labels) {
             this.vertical_markovization = vertical_markovization;
             this.horizontal_markovization = horizontal_markovization;
-            higher_order_siblings = new ArrayDeque<List<String>>();
-            vertical_ancestors    = new ArrayList<String>();
-            horizontal_ancestors  = new ArrayList<String>();
+            this.labels = labels;
         }
 
         public String label() {
-            if (horizontal_ancestors.size() == 0) {
-                return parentLabel();
+            if (num_siblings == sibling_starts[depth - 1]) {
+                return parentNode().getLabel();
             } else {
                 return intermediateLabel();
             }
@@ -185,29 +206,49 @@ public class PCFGParserTester {
             this.markUnaryRewrites = markUnaryRewrites;
         }
 
+        /**
+         * A fresh context with the same Markov orders and options, for annotating trees on another thread.  It shares
+         * this context's labels.
+         */
+        public MarkovContext copy() {
+            MarkovContext copy = new MarkovContext(vertical_markovization, horizontal_markovization, labels);
+            copy.setMarkUnaryRewrites(markUnaryRewrites);
+            return copy;
+        }
+
         public String intermediateLabel() {
-            StringBuilder sb = new StringBuilder();
-            String label = sb.append("@").append(parentLabel()).append("->").append(siblingLabel()).toString();
-            return  label;
+            return siblingNode().getLabel();
         }
 
         public void addParent(String parent) {
-            higher_order_siblings.push(horizontal_ancestors);
-            horizontal_ancestors = new ArrayList<String>();
-            vertical_ancestors.add(parent);
+            if (depth == vertical_ancestors.length) {
+                vertical_ancestors = Arrays.copyOf(vertical_ancestors, 2 * depth);
+                parent_nodes       = Arrays.copyOf(parent_nodes, 2 * depth);
+                sibling_starts     = Arrays.copyOf(sibling_starts, 2 * depth);
+            }
+            vertical_ancestors[depth] = parent;
+            parent_nodes[depth]       = null;
+            sibling_starts[depth]     = num_siblings;
+            depth++;
         }
 
         public void dropParent() {
-            horizontal_ancestors = higher_order_siblings.pop();
-            vertical_ancestors.remove(vertical_ancestors.size() - 1);
+            depth--;
+            num_siblings = sibling_starts[depth];
         }
 
         public void addSibling(String parent) {
-            horizontal_ancestors.add(parent);
+            if (num_siblings == horizontal_ancestors.length) {
+                horizontal_ancestors = Arrays.copyOf(horizontal_ancestors, 2 * num_siblings);
+                sibling_nodes        = Arrays.copyOf(sibling_nodes, 2 * num_siblings);
+            }
+            horizontal_ancestors[num_siblings] = parent;
+            sibling_nodes[num_siblings]        = null;
+            num_siblings++;
         }
 
         public void dropSibling() {
-            horizontal_ancestors.remove(horizontal_ancestors.size() - 1);
+            num_siblings--;
         }
 
         public String getMungedLabel(Tree<String> tree) {
@@ -219,35 +260,48 @@ public class PCFGParserTester {
             return tree.getLabel();
         }
 
-        private String parentLabel() {
-            int min = Math.max(0, vertical_ancestors.size() - vertical_markovization);
-            List<String> markovParents = vertical_ancestors.subList(min, vertical_ancestors.size());
-            return markovLabel(markovParents, false, "^");
-        }
-
-        private String siblingLabel() {
-            int min = Math.max(0, horizontal_ancestors.size() - horizontal_markovization);
-            List<String> markovSiblings = horizontal_ancestors.subList(min, horizontal_ancestors.size());
-            return markovLabel(markovSiblings);
-        }
-
-        private String markovLabel(List<String> markov) {
-            return markovLabel(markov, true);
-        }
-
-        private String markovLabel(List<String> markov, boolean leading_underscore) {
-            return markovLabel(markov, leading_underscore, "_");
+        /**
+         * The last vertical_markovization ancestors.  While the window holds every ancestor, it is the parent's window
+         * extended by one.
+         */
+        private AnnotationLabels.Node parentNode() {
+            AnnotationLabels.Node node = parent_nodes[depth - 1];
+            if (node == null) {
+                int min = Math.max(0, depth - vertical_markovization);
+                if (min == 0 && depth > 1 && parent_nodes[depth - 2] != null) {
+                    node = parent_nodes[depth - 2].getChild(vertical_ancestors[depth - 1]);
+                } else {
+                    node = labels.root;
+                    for (int k = min; k < depth; k++) {
+                        node = node.getChild(vertical_ancestors[k]);
+                    }
+                }
+                parent_nodes[depth - 1] = node;
+            }
+            return node;
         }
 
-        private String markovLabel(List<String> markov, boolean leading_underscore, String separator) {
-            StringBuilder sb = new StringBuilder();
-            for (String element : markov) {
-                sb.append(separator);
-                sb.append(element);
+        /**
+         * The intermediate symbol of the current level with its last horizontal_markovization siblings.  While the
+         * window holds every sibling, it is the previous sibling's extended by one.
+         */
+        private AnnotationLabels.Node siblingNode() {
+            int start = sibling_starts[depth - 1];
+            if (num_siblings == start) return parentNode().getIntermediate();
+            AnnotationLabels.Node node = sibling_nodes[num_siblings - 1];
+            if (node == null) {
+                int min = Math.max(start, num_siblings - horizontal_markovization);
+                if (min == start && num_siblings - 1 > start && sibling_nodes[num_siblings - 2] != null) {
+                    node = sibling_nodes[num_siblings - 2].getChild(horizontal_ancestors[num_siblings - 1]);
+                } else {
+                    node = parentNode().getIntermediate();
+                    for (int k = min; k < num_siblings; k++) {
+                        node = node.getChild(horizontal_ancestors[k]);
+                    }
+                }
+                sibling_nodes[num_siblings - 1] = node;
             }
-            if (!leading_underscore)
-                sb.deleteCharAt(0);
-            return sb.toString();
+            return node;
         }
     }
 
@@ -290,6 +344,38 @@ public class PCFGParserTester {
         return newTree;
     }
 
+    /**
+     * Projects an annotated label onto its bare treebank symbol: parent annotation and unary rewrite marks are dropped,
+     * and intermediate symbols keep only the "@" and their base symbol (so @S^NP->_DT_JJ becomes @NP).
+     */
+    public static String projectLabel(String label) {
+      boolean intermediate = label.startsWith("@");
+      String base = label;
+      if (intermediate) {
+        int arrow = label.indexOf("->");
+        base = label.substring(1, arrow < 0 ? label.length() : arrow);
+      }
+      base = base.substring(base.lastIndexOf('^') + 1);
+      if (base.length() > 2 && base.endsWith("-U")) {
+        base = base.substring(0, base.length() - 2);
+      }
+      return intermediate ? "@" + base : base;
+    }
+
+    /**
+     * Applies projectLabel() to every non-leaf node of an annotated tree.
+     */
+    public static Tree<String> projectTree(Tree<String> annotatedTree) {
+      if (annotatedTree.isLeaf()) {
+        return new Tree<String>(annotatedTree.getLabel());
+      }
+      List<Tree<String>> children = new ArrayList<Tree<String>>(annotatedTree.getChildren().size());
+      for (Tree<String> child : annotatedTree.getChildren()) {
+        children.add(projectTree(child));
+      }
+      return new Tree<String>(projectLabel(annotatedTree.getLabel()), children);
+    }
+
     public static Tree<String> unAnnotateTree(Tree<String> annotatedTree) {
       // Remove intermediate nodes (labels beginning with "@"
       // Remove all material on node labels which follow their base symbol (cuts at the leftmost -, ^, or : character)
@@ -315,6 +401,18 @@ public class PCFGParserTester {
     Counter<String> tagCounter = new Counter<String>();
     Counter<String> wordCounter = new Counter<String>();
     Counter<String> typeTagCounter = new Counter<String>();
+    Indexer<String> tagIndexer = new Indexer<String>();
+    Map<String, double[]> logScoresByWord = new HashMap<String, double[]>();
+    Map<String, double[]> logScoresBySignature = new HashMap<String, double[]>();
+    double[] unknownLogScores;
+
+    /**
+     * Weight of the type-tag distribution (the unknown word model without signatures) in each signature's tag
+     * distribution, as a number of pseudo-words.
+     */
+    private static final double SIGNATURE_SMOOTHING = 1.0;
+
+    private static final String[] SIGNATURE_SUFFIXES = {"ing", "ion", "ity", "est", "ed", "er", "ly", "al", "s", "y"};
 
     public Set<String> getAllTags() {
       return tagCounter.keySet();
@@ -337,6 +435,105 @@ public class PCFGParserTester {
       return p_tag_given_word / p_tag * p_word;
     }
 
+    /**
+     * Tags in the order used by getLogScores().
+     */
+    public Indexer<String> getTagIndexer() {
+      return tagIndexer;
+    }
+
+    /**
+     * Log of scoreTagging(word, tag) for every tag, indexed by getTagIndexer().  Vectors are precomputed for every
+     * training word.  Unknown words share the vector of their signature class, which sharpens the type-tag
+     * distribution of scoreTagging() with the tags of training words of the same class seen only once; a class with no
+     * such words falls back to a vector with scoreTagging()'s scores.
+     */
+    public double[] getLogScores(String word) {
+      double[] logScores = logScoresByWord.get(word);
+      if (logScores != null) return logScores;
+      logScores = logScoresBySignature.get(getSignature(word));
+      return logScores == null ? unknownLogScores : logScores;
+    }
+
+    /**
+     * Every distinct vector getLogScores() can return.
+     */
+    public Collection<double[]> getAllLogScores() {
+      List<double[]> allLogScores = new ArrayList<double[]>(logScoresByWord.values());
+      allLogScores.addAll(logScoresBySignature.values());
+      allLogScores.add(unknownLogScores);
+      return allLogScores;
+    }
+
+    /**
+     * The unknown word class of a word, from its capitalization, digits, dashes and suffix, e.g. "UNK-INITC-s".
+     */
+    public String getSignature(String word) {
+      return computeSignature(word);
+    }
+
+    private static String computeSignature(String word) {
+      StringBuilder sb = new StringBuilder("UNK");
+      int upper = 0, lower = 0, digits = 0;
+      boolean dash = false;
+      for (int k = 0; k < word.length(); k++) {
+        char ch = word.charAt(k);
+        if (Character.isUpperCase(ch)) upper++;
+        else if (Character.isLowerCase(ch)) lower++;
+        else if (Character.isDigit(ch)) digits++;
+        else if (ch == '-') dash = true;
+      }
+      if (upper > 0 && lower == 0) sb.append("-ALLC");
+      else if (Character.isUpperCase(word.charAt(0))) sb.append("-INITC");
+      else if (upper > 0) sb.append("-MIXC");
+      if (digits > 0) sb.append(digits == word.length() ? "-NUM" : "-DIG");
+      if (dash) sb.append("-DASH");
+      if (lower > 0) {
+        String lowerWord = word.toLowerCase();
+        for (String suffix : SIGNATURE_SUFFIXES) {
+          if (lowerWord.length() > suffix.length() + 2 && lowerWord.endsWith(suffix)) {
+            sb.append('-').append(suffix);
+            break;
+          }
+        }
+      }
+      return sb.toString();
+    }
+
+    public double scoreTaggingLog(String word, String tag) {
+      int tagIndex = tagIndexer.indexOf(tag);
+      if (tagIndex < 0) return Double.NEGATIVE_INFINITY;
+      return getLogScores(word)[tagIndex];
+    }
+
+    /**
+     * Same arithmetic as scoreTagging() for every tag at once, with the per-tag counts looked up only once per
+     * lexicon.  A frequent word only scores the tags it was seen with; every other tag gets log(0).
+     */
+    private double[] computeLogScores(String word, double[] tagProbabilities, double[] typeTagShares) {
+      double[] logScores = new double[tagIndexer.size()];
+      double c_word = word == null ? 0.0 : wordCounter.getCount(word);
+      Counter<String> tagCounts = word != null && wordToTagCounters.containsKey(word) ? wordToTagCounters.getCounter(word) : new Counter<String>();
+      if (c_word >= 10) {
+        double p_word = (1.0 + c_word) / (totalTokens + 1.0);
+        Arrays.fill(logScores, Double.NEGATIVE_INFINITY);
+        for (String tag : tagCounts.keySet()) {
+          int tagIndex = tagIndexer.indexOf(tag);
+          double p_tag_given_word = tagCounts.getCount(tag) / c_word;
+          logScores[tagIndex] = Math.log(p_tag_given_word / tagProbabilities[tagIndex] * p_word);
+        }
+      } else { // rare or unknown
+        c_word += 1.0;
+        double p_word = (1.0 + c_word) / (totalTokens + 1.0);
+        for (int tagIndex = 0; tagIndex < logScores.length; tagIndex++) {
+          double c_tag_and_word = tagCounts.getCount(tagIndexer.get(tagIndex)) + typeTagShares[tagIndex];
+          double p_tag_given_word = c_tag_and_word / c_word;
+          logScores[tagIndex] = Math.log(p_tag_given_word / tagProbabilities[tagIndex] * p_word);
+        }
+      }
+      return logScores;
+    }
+
     public Lexicon(List<Tree<String>> trainTrees) {
       for (Tree<String> trainTree : trainTrees) {
         List<String> words = trainTree.getYield();
@@ -347,6 +544,62 @@ public class PCFGParserTester {
           tallyTagging(word, tag);
         }
       }
+      buildLogScores();
+    }
+
+    /**
+     * An empty lexicon, for ParserModel to fill with saved counts before calling buildLogScores().
+     */
+    Lexicon() {
+    }
+
+    /**
+     * Indexes the tags and precomputes the log score vectors from the counts.
+     */
+    void buildLogScores() {
+      tagIndexer.addAll(CollectionUtils.sort(tagCounter.keySet()));
+      double[] tagProbabilities = new double[tagIndexer.size()];
+      double[] typeTagShares = new double[tagIndexer.size()];
+      for (int tagIndex = 0; tagIndex < tagProbabilities.length; tagIndex++) {
+        String tag = tagIndexer.get(tagIndex);
+        tagProbabilities[tagIndex] = tagCounter.getCount(tag) / totalTokens;
+        typeTagShares[tagIndex] = typeTagCounter.getCount(tag) / totalWordTypes;
+      }
+      for (String word : wordCounter.keySet()) {
+        logScoresByWord.put(word, computeLogScores(word, tagProbabilities, typeTagShares));
+      }
+      unknownLogScores = computeLogScores(null, tagProbabilities, typeTagShares);
+
+      CounterMap<String, String> signatureTagCounters = new CounterMap<String, String>();
+      for (String word : wordCounter.keySet()) {
+        if (wordCounter.getCount(word) == 1.0) {
+          Counter<String> tagCounts = wordToTagCounters.getCounter(word);
+          for (String tag : tagCounts.keySet()) {
+            signatureTagCounters.incrementCount(computeSignature(word), tag, tagCounts.getCount(tag));
+          }
+        }
+      }
+      for (String signature : signatureTagCounters.keySet()) {
+        Counter<String> tagCounts = signatureTagCounters.getCounter(signature);
+        logScoresBySignature.put(signature, computeSignatureLogScores(tagCounts, tagProbabilities, typeTagShares));
+      }
+    }
+
+    /**
+     * The unknown word branch of computeLogScores(), with the type-tag share of each tag replaced by its smoothed
+     * share among the signature's words.
+     */
+    private double[] computeSignatureLogScores(Counter<String> tagCounts, double[] tagProbabilities, double[] typeTagShares) {
+      double[] logScores = new double[tagIndexer.size()];
+      double c_word = 1.0;
+      double p_word = (1.0 + c_word) / (totalTokens + 1.0);
+      double total = tagCounts.totalCount() + SIGNATURE_SMOOTHING;
+      for (int tagIndex = 0; tagIndex < logScores.length; tagIndex++) {
+        double c_tag_and_word = (tagCounts.getCount(tagIndexer.get(tagIndex)) + SIGNATURE_SMOOTHING * typeTagShares[tagIndex]) / total;
+        double p_tag_given_word = c_tag_and_word / c_word;
+        logScores[tagIndex] = Math.log(p_tag_given_word / tagProbabilities[tagIndex] * p_word);
+      }
+      return logScores;
     }
 
     private void tallyTagging(String word, String tag) {
@@ -464,6 +717,18 @@ public class PCFGParserTester {
       }
     }
 
+    /**
+     * A grammar of rules whose scores are already set, as estimated by ParallelTrainer.
+     */
+    Grammar(List<UnaryRule> unaryRules, List<BinaryRule> binaryRules) {
+      for (UnaryRule unaryRule : unaryRules) {
+        addUnary(unaryRule);
+      }
+      for (BinaryRule binaryRule : binaryRules) {
+        addBinary(binaryRule);
+      }
+    }
+
     private void tallyTree(Tree<String> tree, Counter<String> symbolCounter, Counter<UnaryRule> unaryRuleCounter, Counter<BinaryRule> binaryRuleCounter) {
       if (tree.isLeaf()) return;
       if (tree.isPreTerminal()) return;
@@ -606,146 +871,262 @@ public class PCFGParserTester {
    * Calculates and provides accessors for the REFLEXIVE, TRANSITIVE closure of the unary rules in the provided Grammar.
    * Each rule in this closure stands for zero or more unary rules in the original grammar.  Use the getPath() method to
    * retrieve the full sequence of symbols (from parent to child) which support that path.
+   *
+   * The closure is computed and stored over integer state ids (states are indexed in sorted label order).  Closed rule
+   * r is parents[r] -> children[r] with probability scores[r], the rules being sorted by (parent, child) so that the
+   * rules of parent p are [byParentStart[p], byParentStart[p + 1]); byChild lists the same rule ids grouped by child.
+   * The path of rule r is pathStates[pathStarts[r] .. pathStarts[r + 1]), which holds a single state for a self-loop.
+   * The UnaryRule accessors build their rules from these arrays on demand.
    */
   static class UnaryClosure {
-    Map<String, List<UnaryRule>> closedUnaryRulesByChild = new HashMap<String, List<UnaryRule>>();
-    Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
-    Map<UnaryRule, List<String>> pathMap = new HashMap<UnaryRule, List<String>>();
+    Indexer<String> states;
+    int[] parents;
+    int[] children;
+    double[] scores;
+    int[] byParentStart;
+    int[] byChild;
+    int[] byChildStart;
+    int[] pathStarts;
+    int[] pathStates;
 
     public List<UnaryRule> getClosedUnaryRulesByChild(String child) {
-      return CollectionUtils.getValueList(closedUnaryRulesByChild, child);
+      int c = states.indexOf(child);
+      if (c < 0) return Collections.emptyList();
+      List<UnaryRule> rules = new ArrayList<UnaryRule>(byChildStart[c + 1] - byChildStart[c]);
+      for (int k = byChildStart[c]; k < byChildStart[c + 1]; k++) {
+        rules.add(getRule(byChild[k]));
+      }
+      return rules;
     }
 
     public List<UnaryRule> getClosedUnaryRulesByParent(String parent) {
-      return CollectionUtils.getValueList(closedUnaryRulesByParent, parent);
+      int p = states.indexOf(parent);
+      if (p < 0) return Collections.emptyList();
+      List<UnaryRule> rules = new ArrayList<UnaryRule>(byParentStart[p + 1] - byParentStart[p]);
+      for (int r = byParentStart[p]; r < byParentStart[p + 1]; r++) {
+        rules.add(getRule(r));
+      }
+      return rules;
     }
 
     public List<String> getPath(UnaryRule unaryRule) {
-      return pathMap.get(unaryRule);
+      int r = findRule(states.indexOf(unaryRule.getParent()), states.indexOf(unaryRule.getChild()));
+      if (r < 0) return null;
+      List<String> path = new ArrayList<String>(pathStarts[r + 1] - pathStarts[r]);
+      for (int k = pathStarts[r]; k < pathStarts[r + 1]; k++) {
+        path.add(states.get(pathStates[k]));
+      }
+      return path;
+    }
+
+    public int numRules() {
+      return parents.length;
+    }
+
+    private UnaryRule getRule(int r) {
+      UnaryRule rule = new UnaryRule(states.get(parents[r]), states.get(children[r]));
+      rule.setScore(scores[r]);
+      return rule;
+    }
+
+    private int findRule(int parent, int child) {
+      if (parent < 0 || child < 0) return -1;
+      int r = Arrays.binarySearch(children, byParentStart[parent], byParentStart[parent + 1], child);
+      return r < 0 ? -1 : r;
     }
 
     public String toString() {
       StringBuilder sb = new StringBuilder();
-      for (String parent : closedUnaryRulesByParent.keySet()) {
-        for (UnaryRule unaryRule : getClosedUnaryRulesByParent(parent)) {
-          List<String> path = getPath(unaryRule);
-//          if (path.size() == 2) continue;
-          sb.append(unaryRule);
-          sb.append("  ");
-          sb.append(path);
-          sb.append("\n");
-        }
+      for (int r = 0; r < parents.length; r++) {
+        UnaryRule unaryRule = getRule(r);
+        sb.append(unaryRule);
+        sb.append("  ");
+        sb.append(getPath(unaryRule));
+        sb.append("\n");
       }
       return sb.toString();
     }
 
     public UnaryClosure(Collection<UnaryRule> unaryRules) {
-      Map<UnaryRule, List<String>> closureMap = computeUnaryClosure(unaryRules);
-      for (UnaryRule unaryRule : closureMap.keySet()) {
-        addUnary(unaryRule, closureMap.get(unaryRule));
-      }
+      this(unaryRules, Collections.<String>emptySet());
     }
 
-    public UnaryClosure(Grammar grammar) {
-      this(grammar.getUnaryRules());
-    }
-
-    private void addUnary(UnaryRule unaryRule, List<String> path) {
-      CollectionUtils.addToValueList(closedUnaryRulesByChild, unaryRule.getChild(), unaryRule);
-      CollectionUtils.addToValueList(closedUnaryRulesByParent, unaryRule.getParent(), unaryRule);
-      pathMap.put(unaryRule, path);
+    /**
+     * Builds the closure of the given rules, with a self-loop for every state in the rules and for every extra state.
+     */
+    public UnaryClosure(Collection<UnaryRule> unaryRules, Collection<String> extraStates) {
+      // Reflexive: states which never take part in a unary rule (e.g. tags only seen under binary rules) still need
+      // their self-loop, otherwise they can never be built at all
+      Set<String> labels = new HashSet<String>(extraStates);
+      for (UnaryRule unaryRule : unaryRules) {
+        labels.add(unaryRule.getParent());
+        labels.add(unaryRule.getChild());
+      }
+      states = new Indexer<String>(CollectionUtils.sort(labels));
+      computeUnaryClosure(unaryRules);
+      System.out.println("SIZE: " + parents.length);
     }
 
-    private static Map<UnaryRule, List<String>> computeUnaryClosure(Collection<UnaryRule> unaryRules) {
-
-      Map<UnaryRule, String> intermediateStates = new HashMap<UnaryRule, String>();
-      Counter<UnaryRule> pathCosts = new Counter<UnaryRule>();
-      Map<String, List<UnaryRule>> closedUnaryRulesByChild = new HashMap<String, List<UnaryRule>>();
-      Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
-
-      Set<String> states = new HashSet<String>();
-
+    public UnaryClosure(Grammar grammar) {
+      this(grammar.getUnaryRules(), grammar.getStates());
+    }
+
+    /**
+     * Max-product closure: every rule probability is at most 1, so the best path from a parent to each state it
+     * reaches is found by a Dijkstra search out of that parent, taking states in order of decreasing path probability.
+     * Each search leaves a predecessor for every state it reaches, from which the paths are read back.
+     */
+    private void computeUnaryClosure(Collection<UnaryRule> unaryRules) {
+      int numStates = states.size();
+      int[] ruleParents = new int[unaryRules.size()];
+      int[] ruleChildren = new int[unaryRules.size()];
+      double[] ruleScores = new double[unaryRules.size()];
+      int u = 0;
       for (UnaryRule unaryRule : unaryRules) {
-        relax(pathCosts, intermediateStates, closedUnaryRulesByChild, closedUnaryRulesByParent, unaryRule, null, unaryRule.getScore());
-        states.add(unaryRule.getParent());
-        states.add(unaryRule.getChild());
-      }
-
-      for (String intermediateState : states) {
-        List<UnaryRule> incomingRules = closedUnaryRulesByChild.get(intermediateState);
-        List<UnaryRule> outgoingRules = closedUnaryRulesByParent.get(intermediateState);
-        if (incomingRules == null || outgoingRules == null) continue;
-        for (UnaryRule incomingRule : incomingRules) {
-          for (UnaryRule outgoingRule : outgoingRules) {
-            UnaryRule rule = new UnaryRule(incomingRule.getParent(), outgoingRule.getChild());
-            double newScore = pathCosts.getCount(incomingRule) * pathCosts.getCount(outgoingRule);
-            relax(pathCosts, intermediateStates, closedUnaryRulesByChild, closedUnaryRulesByParent, rule, intermediateState, newScore);
+        ruleParents[u] = states.indexOf(unaryRule.getParent());
+        ruleChildren[u] = states.indexOf(unaryRule.getChild());
+        ruleScores[u] = unaryRule.getScore();
+        u++;
+      }
+      int[] outStart = CompiledGrammar.groupStarts(ruleParents, numStates);
+      int[] out = CompiledGrammar.groupBy(ruleParents, outStart);
+
+      double[] best = new double[numStates];
+      int[] predecessor = new int[numStates];
+      boolean[] done = new boolean[numStates];
+      int[] reached = new int[numStates];
+      int[] heapStates = new int[16];
+      double[] heapScores = new double[16];
+
+      IntList closedParents = new IntList();
+      IntList closedChildren = new IntList();
+      double[] closedScores = new double[1024];
+      IntList closedPathStarts = new IntList();
+      IntList closedPathStates = new IntList();
+      int[] reversedPath = new int[numStates];
+      for (int parent = 0; parent < numStates; parent++) {
+        int numReached = 0;
+        best[parent] = 1.0;
+        predecessor[parent] = -1;
+        reached[numReached++] = parent;
+        heapStates[0] = parent;
+        heapScores[0] = 1.0;
+        int heapSize = 1;
+        while (heapSize > 0) {
+          int state = heapStates[0];
+          double score = heapScores[0];
+          heapSize--;
+          siftDown(heapStates, heapScores, heapSize, heapStates[heapSize], heapScores[heapSize]);
+          if (done[state] || score < best[state]) continue;
+          done[state] = true;
+          for (int k = outStart[state]; k < outStart[state + 1]; k++) {
+            int rule = out[k];
+            int child = ruleChildren[rule];
+            double newScore = score * ruleScores[rule];
+            if (done[child] || newScore <= best[child]) continue;
+            if (best[child] == 0.0) reached[numReached++] = child;
+            best[child] = newScore;
+            predecessor[child] = state;
+            if (heapSize == heapStates.length) {
+              heapStates = Arrays.copyOf(heapStates, 2 * heapSize);
+              heapScores = Arrays.copyOf(heapScores, 2 * heapSize);
+            }
+            siftUp(heapStates, heapScores, heapSize++, child, newScore);
           }
         }
-      }
 
-      for (String state : states) {
-        UnaryRule selfLoopRule = new UnaryRule(state, state);
-        relax(pathCosts, intermediateStates, closedUnaryRulesByChild, closedUnaryRulesByParent, selfLoopRule, null, 1.0);
+        Arrays.sort(reached, 0, numReached);
+        for (int r = 0; r < numReached; r++) {
+          int child = reached[r];
+          if (closedParents.size == closedScores.length) closedScores = Arrays.copyOf(closedScores, 2 * closedParents.size);
+          closedScores[closedParents.size] = best[child];
+          closedParents.add(parent);
+          closedChildren.add(child);
+          closedPathStarts.add(closedPathStates.size);
+          int length = 0;
+          for (int state = child; state >= 0; state = predecessor[state]) {
+            reversedPath[length++] = state;
+          }
+          for (int k = length - 1; k >= 0; k--) {
+            closedPathStates.add(reversedPath[k]);
+          }
+          best[child] = 0.0;
+          done[child] = false;
+        }
       }
-
-      Map<UnaryRule, List<String>> closureMap = new HashMap<UnaryRule, List<String>>();
-
-      for (UnaryRule unaryRule : pathCosts.keySet()) {
-        unaryRule.setScore(pathCosts.getCount(unaryRule));
-        List<String> path = extractPath(unaryRule, intermediateStates);
-        closureMap.put(unaryRule, path);
+      closedPathStarts.add(closedPathStates.size);
+
+      parents = closedParents.toArray();
+      children = closedChildren.toArray();
+      scores = Arrays.copyOf(closedScores, parents.length);
+      pathStarts = closedPathStarts.toArray();
+      pathStates = closedPathStates.toArray();
+      byParentStart = CompiledGrammar.groupStarts(parents, numStates);
+      byChildStart = CompiledGrammar.groupStarts(children, numStates);
+      byChild = CompiledGrammar.groupBy(children, byChildStart);
+    }
+
+    /**
+     * Binary max-heap on score: places (state, score) at position hole or above it.
+     */
+    private static void siftUp(int[] heapStates, double[] heapScores, int hole, int state, double score) {
+      while (hole > 0) {
+        int parent = (hole - 1) >>> 1;
+        if (heapScores[parent] >= score) break;
+        heapStates[hole] = heapStates[parent];
+        heapScores[hole] = heapScores[parent];
+        hole = parent;
       }
-
-      System.out.println("SIZE: " + closureMap.keySet().size());
-
-      return closureMap;
-
-    }
-
-    private static List<String> extractPath(UnaryRule unaryRule, Map<UnaryRule, String> intermediateStates) {
-      List<String> path = new ArrayList<String>();
-      path.add(unaryRule.getParent());
-      String intermediateState = intermediateStates.get(unaryRule);
-      if (intermediateState != null) {
-        List<String> parentPath = extractPath(new UnaryRule(unaryRule.getParent(), intermediateState), intermediateStates);
-        for (int i = 1; i < parentPath.size() - 1; i++) {
-          String state = parentPath.get(i);
-          path.add(state);
-        }
-        path.add(intermediateState);
-        List<String> childPath = extractPath(new UnaryRule(intermediateState, unaryRule.getChild()), intermediateStates);
-        for (int i = 1; i < childPath.size() - 1; i++) {
-          String state = childPath.get(i);
-          path.add(state);
-        }
+      heapStates[hole] = state;
+      heapScores[hole] = score;
+    }
+
+    /**
+     * Places (state, score) at the root of a heap of the given size, or below it.
+     */
+    private static void siftDown(int[] heapStates, double[] heapScores, int size, int state, double score) {
+      int hole = 0;
+      while (2 * hole + 1 < size) {
+        int child = 2 * hole + 1;
+        if (child + 1 < size && heapScores[child + 1] > heapScores[child]) child++;
+        if (heapScores[child] <= score) break;
+        heapStates[hole] = heapStates[child];
+        heapScores[hole] = heapScores[child];
+        hole = child;
       }
-      if (path.size() == 1 && unaryRule.getParent().equals(unaryRule.getChild())) return path;
-      path.add(unaryRule.getChild());
-      return path;
+      heapStates[hole] = state;
+      heapScores[hole] = score;
     }
 
+    /**
+     * Grow-only int list, so the closure does not box its rules and paths while they are collected.
+     */
+    private static class IntList {
+      int[] values = new int[1024];
+      int size;
 
-    private static void relax(Counter<UnaryRule> pathCosts, Map<UnaryRule, String> intermediateStates, Map<String, List<UnaryRule>> closedUnaryRulesByChild, Map<String, List<UnaryRule>> closedUnaryRulesByParent, UnaryRule unaryRule, String intermediateState, double newScore) {
-      if (intermediateState != null && (intermediateState.equals(unaryRule.getParent()) || intermediateState.equals(unaryRule.getChild()))) return;
-      boolean isNewRule = !pathCosts.containsKey(unaryRule);
-      double oldScore = (isNewRule ? Double.NEGATIVE_INFINITY : pathCosts.getCount(unaryRule));
-      if (oldScore > newScore) return;
-      if (isNewRule) {
-        CollectionUtils.addToValueList(closedUnaryRulesByChild, unaryRule.getChild(), unaryRule);
-        CollectionUtils.addToValueList(closedUnaryRulesByParent, unaryRule.getParent(), unaryRule);
+      void add(int value) {
+        if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+        values[size++] = value;
       }
-      pathCosts.setCount(unaryRule, newScore);
-      intermediateStates.put(unaryRule, intermediateState);
-    }
 
+      int[] toArray() {
+        return Arrays.copyOf(values, size);
+      }
+    }
   }
 
-
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
     // Parse command line flags and arguments
     Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
 
+    // Serving on stdin / stdout: stdout carries only the responses, so everything else is logged to stderr
+    boolean serving = argMap.containsKey("-serve") || argMap.containsKey("-port");
+    PrintStream protocolOut = System.out;
+    if (argMap.containsKey("-serve") && !argMap.containsKey("-port")) {
+      System.setOut(System.err);
+    }
+
     // Set up default parameters and settings
     String basePath = ".";
     boolean verbose = true;
@@ -779,18 +1160,31 @@ public class PCFGParserTester {
       verbose = false;
     }
 
-    System.out.print("Loading training trees (sections 2-21) ... ");
-    List<Tree<String>> trainTrees = readTrees(basePath, 200, 2199, maxTrainLength);
-    System.out.println("done. (" + trainTrees.size() + " trees)");
-    List<Tree<String>> testTrees;
-    if (testMode.equalsIgnoreCase("validate")) {
+    Iterable<Tree<String>> trainTrees = null;
+    List<Tree<String>> trainTreeList = null;    // trainTrees, unless they are streamed
+    if (argMap.containsKey("-loadModel")) {
+      // Nothing to train
+    } else if (argMap.containsKey("-streamTraining")) {
+      // Read as the parser trains, so the treebank is never held in memory
+      System.out.println("Streaming training trees (sections 2-21)");
+      trainTrees = streamTrees(basePath, 200, 2199, maxTrainLength);
+    } else {
+      System.out.print("Loading training trees (sections 2-21) ... ");
+      trainTreeList = readTrees(basePath, 200, 2199, maxTrainLength);
+      trainTrees = trainTreeList;
+      System.out.println("done. (" + trainTreeList.size() + " trees)");
+    }
+    List<Tree<String>> testTrees = null;
+    if (serving) {
+      // No test set to read
+    } else if (testMode.equalsIgnoreCase("validate")) {
       System.out.print("Loading validation trees (section 22) ... ");
       testTrees = readTrees(basePath, 2200, 2299, maxTestLength);
     } else {
       System.out.print("Loading test trees (section 23) ... ");
       testTrees = readTrees(basePath, 2300, 2399, maxTestLength);
     }
-    System.out.println("done. (" + testTrees.size() + " trees)");
+    if (testTrees != null) System.out.println("done. (" + testTrees.size() + " trees)");
 
     int v_markov = argMap.containsKey("-vMarkov") ? Integer.parseInt(argMap.get("-vMarkov")) : 1;
     int h_markov = argMap.containsKey("-hMarkov") ? Integer.parseInt(argMap.get("-hMarkov")) : Integer.MAX_VALUE;
@@ -803,34 +1197,206 @@ public class PCFGParserTester {
       System.out.println("Horizontal Markov: " + h_markov);
       System.out.println("Vertical Markov: " + v_markov);
 
-      Parser parser = argMap.containsKey("-baseline") ? new BaselineParser(trainTrees) : new CKYParser(trainTrees, context);
+      ParserModel model = null;
+      if (argMap.containsKey("-loadModel")) {
+          System.out.print("Loading model from " + argMap.get("-loadModel") + " ... ");
+          long start = System.currentTimeMillis();
+          model = ParserModel.load(argMap.get("-loadModel"));
+          System.out.println("done. (" + model.grammar.numStates() + " states, " + (System.currentTimeMillis() - start) + "ms)");
+      }
+
+      TrainingOptions trainingOptions = new TrainingOptions();
+      if (argMap.containsKey("-trainThreads")) {
+          trainingOptions.setThreads(Integer.parseInt(argMap.get("-trainThreads")));
+      }
+      if (argMap.containsKey("-minimize")) {
+          // Optionally followed by a tolerance on log probabilities; exact equivalence by default.  A loaded model is
+          // used as saved (minimize it when training the model instead).
+          if (model != null) throw new IllegalArgumentException("-minimize applies to training, not to a loaded model");
+          double tolerance = argMap.get("-minimize") != null ? Double.parseDouble(argMap.get("-minimize")) : 0.0;
+          trainingOptions.setMinimizeTolerance(tolerance);
+          System.out.println("Minimizing the grammar (tolerance " + tolerance + ")");
+      }
 
-      testParser(parser, testTrees, verbose);
+      Parser parser;
+      if (argMap.containsKey("-baseline")) {
+          if (model != null) throw new IllegalArgumentException("The baseline parser cannot be loaded from a model");
+          if (trainTreeList == null) throw new IllegalArgumentException("The baseline parser cannot train on streamed trees");
+          parser = new BaselineParser(trainTreeList);
+      } else if (argMap.containsKey("-bottomUp") || argMap.containsKey("-coarseToFine") || argMap.containsKey("-beamSize") || argMap.containsKey("-beamRatio")) {
+          System.out.println("Bottom-up CKY");
+          double pruneThreshold = 0.0;
+          if (argMap.containsKey("-coarseToFine")) {
+              pruneThreshold = argMap.containsKey("-pruneThreshold") ? Double.parseDouble(argMap.get("-pruneThreshold")) : 1e-4;
+              System.out.println("Coarse-to-fine pruning threshold: " + pruneThreshold);
+          }
+          BottomUpCKYParser bottomUpParser = model != null ? new BottomUpCKYParser(model, pruneThreshold) : new BottomUpCKYParser(trainTrees, context, pruneThreshold, trainingOptions);
+          if (argMap.containsKey("-chartThreads")) {
+              bottomUpParser.setParallelism(Integer.parseInt(argMap.get("-chartThreads")));
+          }
+          parser = bottomUpParser;
+      } else if (argMap.containsKey("-astar")) {
+          System.out.println("A* parser");
+          parser = model != null ? new AStarParser(model) : new AStarParser(trainTrees, context, trainingOptions);
+      } else {
+          parser = model != null ? new CKYParser(model) : new CKYParser(trainTrees, context, trainingOptions);
+      }
+
+      if (argMap.containsKey("-timeBudget") || argMap.containsKey("-memoryBudget")) {
+          if (!(parser instanceof CKYParser) || parser instanceof AStarParser) {
+              throw new IllegalArgumentException("Per-sentence budgets need a CKY parser");
+          }
+          long timeBudget = argMap.containsKey("-timeBudget") ? Long.parseLong(argMap.get("-timeBudget")) : 0;
+          long memoryBudget = argMap.containsKey("-memoryBudget") ? Long.parseLong(argMap.get("-memoryBudget")) : 0;
+          System.out.println("Per-sentence budgets: " + (timeBudget > 0 ? timeBudget + "ms" : "no time limit") + ", " +
+              (memoryBudget > 0 ? memoryBudget + "MB of chart" : "no memory limit"));
+          ((CKYParser) parser).setBudget(timeBudget, memoryBudget << 20);
+      }
+
+      if (argMap.containsKey("-saveModel") && parser instanceof CKYParser) {
+          System.out.print("Saving model to " + argMap.get("-saveModel") + " ... ");
+          ParserModel.save((CKYParser) parser, argMap.get("-saveModel"));
+          System.out.println("done.");
+      }
+
+      int threads = argMap.containsKey("-threads") ? Integer.parseInt(argMap.get("-threads")) : 1;
+      if (serving) {
+          if (parser instanceof BottomUpCKYParser && (argMap.containsKey("-beamSize") || argMap.containsKey("-beamRatio"))) {
+              // A server runs at one operating point; the comma separated lists below are for comparing them offline
+              String beamSize  = argMap.containsKey("-beamSize")  ? argMap.get("-beamSize")  : "0";
+              String beamRatio = argMap.containsKey("-beamRatio") ? argMap.get("-beamRatio") : "0";
+              if (beamSize.contains(",") || beamRatio.contains(",")) {
+                  throw new IllegalArgumentException("A server takes a single -beamSize and -beamRatio, not lists");
+              }
+              System.out.println("Beam size: " + beamSize + ", beam ratio: " + beamRatio);
+              ((BottomUpCKYParser) parser).setBeam(Integer.parseInt(beamSize), Double.parseDouble(beamRatio));
+          }
+          ParserServer server = new ParserServer(parser, threads);
+          System.out.println("Serving with " + threads + " parser threads");
+          if (argMap.containsKey("-port")) {
+              server.listen(Integer.parseInt(argMap.get("-port")));
+          } else {
+              server.serve(System.in, protocolOut);
+              System.err.println(server.getStats());
+              server.shutdown();
+          }
+          return;
+      }
+      if (threads > 1) System.out.println("Parsing with " + threads + " threads");
+      if (parser instanceof BottomUpCKYParser && (argMap.containsKey("-beamSize") || argMap.containsKey("-beamRatio"))) {
+          // Comma separated settings are each tested in turn, to compare operating points off one trained grammar
+          String[] beamSizes  = argMap.containsKey("-beamSize")  ? argMap.get("-beamSize").split(",")  : new String[] {"0"};
+          String[] beamRatios = argMap.containsKey("-beamRatio") ? argMap.get("-beamRatio").split(",") : new String[] {"0"};
+          for (String beamSize : beamSizes) {
+              for (String beamRatio : beamRatios) {
+                  System.out.println("Beam size: " + beamSize + ", beam ratio: " + beamRatio);
+                  ((BottomUpCKYParser) parser).setBeam(Integer.parseInt(beamSize), Double.parseDouble(beamRatio));
+                  testParser(parser, testTrees, verbose, threads);
+              }
+          }
+      } else {
+          testParser(parser, testTrees, verbose, threads);
+      }
+      if (parser instanceof AStarParser) {
+          AStarParser aStarParser = (AStarParser) parser;
+          System.out.println("A* popped " + aStarParser.getPops() + " edges (" + aStarParser.getPops() / Math.max(1, aStarParser.getSentences()) + " per sentence)");
+      }
   }
 
   private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose) {
+      testParser(parser, testTrees, verbose, 1);
+  }
+
+  /**
+   * Parses the test trees on a pool of the given number of threads.  Guesses are evaluated (and printed) in test set
+   * order as they come back, so the scores and output are the same as a single-threaded run.  Latencies (and, for the
+   * CKY parsers, stage timings and counters) are collected in a ParserMetrics, summarized at the end.
+   */
+  private static void testParser(final Parser parser, List<Tree<String>> testTrees, boolean verbose, int threads) {
       EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[]{"''", "``", ".", ":", ","})));
+      final ParserMetrics metrics = new ParserMetrics();
+      if (parser instanceof CKYParser) ((CKYParser) parser).setMetrics(metrics);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      List<Future<ParseResult>> results = new ArrayList<Future<ParseResult>>();
+      for (final Tree<String> testTree : testTrees) {
+          results.add(pool.submit(new Callable<ParseResult>() {
+              public ParseResult call() {
+                  long start = System.nanoTime();
+                  Tree<String> guessedTree = parser.getBestParse(testTree.getYield());
+                  long nanos = System.nanoTime() - start;
+                  metrics.recordSentence(testTree.getYield().size(), nanos);
+                  return new ParseResult(guessedTree, nanos);
+              }
+          }));
+      }
+      pool.shutdown();
+
+      // Score sentences by length, in the length buckets of ParserMetrics
+      Map<Integer, EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>> bucketEvals = new TreeMap<Integer, EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>>();
+      PrintWriter discard = new PrintWriter(new Writer() {
+          public void write(char[] cbuf, int off, int len) {}
+          public void flush() {}
+          public void close() {}
+      });
+
+      long start = System.nanoTime();
       int count = 0;
       double average = 0.0;
-      for (Tree<String> testTree : testTrees) {
+      for (int t = 0; t < testTrees.size(); t++) {
+          Tree<String> testTree = testTrees.get(t);
+          ParseResult result;
+          try {
+              result = results.get(t).get();
+          } catch (InterruptedException e) {
+              pool.shutdownNow();
+              throw new RuntimeException(e);
+          } catch (ExecutionException e) {
+              pool.shutdownNow();
+              throw new RuntimeException(e.getCause());
+          }
           count++;
-          Date s = new Date();
-          List<String> testSentence = testTree.getYield();
-          Tree<String> guessedTree = parser.getBestParse(testSentence);
-          long length = new Date().getTime() - s.getTime();
+          Tree<String> guessedTree = result.guess;
+          double millis = result.nanos / 1e6;
           if (verbose) {
-              average = (average * (count - 1) / count) + (length / count);
+              average += (millis - average) / count;
+              // Sentences finish threads at a time, so the remaining time comes from wall-clock throughput
+              double elapsed = (System.nanoTime() - start) / 1e9;
               System.out.println("Guess:\n" + Trees.PennTreeRenderer.render(guessedTree));
               System.out.println("Gold:\n" + Trees.PennTreeRenderer.render(testTree));
-              System.out.println("Took: " + length + "ms at n=" + testSentence.size());
-              System.out.println("Average: " + average + "ms");
+              System.out.println("Took: " + String.format("%.2f", millis) + "ms at n=" + testTree.getYield().size());
+              System.out.println("Average: " + String.format("%.2f", average) + "ms");
               System.out.println("Progress:" + count + '/' + testTrees.size());
-              System.out.println("Time Remaining: " + (int)(average * (testTrees.size() - count) / 1000) + "s");
+              System.out.println("Time Remaining: " + (int) (elapsed / count * (testTrees.size() - count)) + "s");
           }
           eval.evaluate(guessedTree, testTree);
 
+          int bucket = (testTree.getYield().size() - 1) / ParserMetrics.LENGTH_BUCKET;
+          if (!bucketEvals.containsKey(bucket)) {
+              bucketEvals.put(bucket, new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[]{"''", "``", ".", ":", ","}))));
+          }
+          bucketEvals.get(bucket).evaluate(guessedTree, testTree, discard);
+      }
+      metrics.finish();
+      if (parser instanceof CKYParser) ((CKYParser) parser).setMetrics(null);
+      for (int bucket : bucketEvals.keySet()) {
+          System.out.print("Length " + (bucket * ParserMetrics.LENGTH_BUCKET + 1) + "-" + (bucket + 1) * ParserMetrics.LENGTH_BUCKET + ":");
+          bucketEvals.get(bucket).display(true);
       }
       eval.display(true);
+      metrics.printSummary(System.out);
+  }
+
+  /**
+   * A guess together with how long it took to parse.
+   */
+  static class ParseResult {
+      final Tree<String> guess;
+      final long nanos;
+
+      ParseResult(Tree<String> guess, long nanos) {
+          this.guess = guess;
+          this.nanos = nanos;
+      }
   }
 
   private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
@@ -847,4 +1413,42 @@ public class PCFGParserTester {
     }
     return normalizedTreeList;
   }
+
+  /**
+   * The trees readTrees() would return, read and normalized lazily each time they are iterated over.
+   */
+  private static Iterable<Tree<String>> streamTrees(final String basePath, final int low, final int high, final int maxLength) {
+    return new Iterable<Tree<String>>() {
+      public Iterator<Tree<String>> iterator() {
+        final Iterator<Tree<String>> trees = PennTreebankReader.readTrees(basePath, low, high).iterator();
+        final Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
+        return new Iterator<Tree<String>>() {
+          Tree<String> next = advance();
+
+          private Tree<String> advance() {
+            while (trees.hasNext()) {
+              Tree<String> normalizedTree = treeTransformer.transformTree(trees.next());
+              if (normalizedTree.getYield().size() <= maxLength) return normalizedTree;
+            }
+            return null;
+          }
+
+          public boolean hasNext() {
+            return next != null;
+          }
+
+          public Tree<String> next() {
+            if (next == null) throw new NoSuchElementException();
+            Tree<String> tree = next;
+            next = advance();
+            return tree;
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
 }
@@ -0,0 +1,298 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Estimates a parser's Grammar and Lexicon from training trees on several threads, streaming: trees are read, annotated
+ * and tallied a shard at a time and then dropped, so memory holds the counts plus a few shards of trees rather than
+ * the treebank.
+ *
+ * The trees are cut, in order, into shards of SHARD_TREES trees.  Each worker annotates and binarizes a shard with its
+ * own copy of the MarkovContext (which keeps per-tree state) and tallies the result into primitive count tables:
+ * labels and words are interned into the shard's own Indexers, and rules and (word, tag) pairs are counted under long
+ * keys packed from those ids.  Finished shards are merged into the global counts in shard order, while later shards
+ * are still being tallied; no more than a shard per thread is read ahead of the merge.  Counts are whole numbers, so
+ * the merged sums are exact, and a word's first occurrence (whose tag goes into the lexicon's type-tag counts) is the
+ * one in the earliest shard holding the word, just as in a single pass.  The Grammar and Lexicon built from the merged
+ * counts are therefore the ones Grammar(List) and Lexicon(List) build from the annotated trees.
+ *
+ * @author Keith Stone
+ */
+public class ParallelTrainer {
+    static final int SHARD_TREES = 2000;
+
+    // Labels are packed 21 bits apiece into binary rule keys
+    private static final int MAX_LABELS = 1 << 21;
+
+    PCFGParserTester.Grammar grammar;
+    PCFGParserTester.Lexicon lexicon = new PCFGParserTester.Lexicon();
+    Set<String>              rootLabels = new HashSet<String>();
+    int                      numTrees;
+
+    // Counts merged so far, under global label ids
+    private final Indexer<String> labels       = new Indexer<String>();
+    private final LongCounts      symbolCounts = new LongCounts();
+    private final LongCounts      unaryCounts  = new LongCounts();
+    private final LongCounts      binaryCounts = new LongCounts();
+
+    /**
+     * Trains on the trees in iteration order; they are iterated once, and not kept.
+     */
+    public ParallelTrainer(Iterable<Tree<String>> trainTrees, PCFGParserTester.TreeAnnotations.MarkovContext context, int threads) {
+        Iterator<Tree<String>> trees = trainTrees.iterator();
+        if (threads <= 1) {
+            while (trees.hasNext()) {
+                merge(new Shard(nextShard(trees), context.copy()).call());
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            Deque<Future<Shard>> pending = new ArrayDeque<Future<Shard>>();
+            try {
+                while (trees.hasNext()) {
+                    pending.add(pool.submit(new Shard(nextShard(trees), context.copy())));
+                    if (pending.size() > threads) merge(pending.poll().get());
+                }
+                while (!pending.isEmpty()) {
+                    merge(pending.poll().get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while training", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        finish();
+    }
+
+    private List<Tree<String>> nextShard(Iterator<Tree<String>> trees) {
+        List<Tree<String>> shard = new ArrayList<Tree<String>>(SHARD_TREES);
+        while (shard.size() < SHARD_TREES && trees.hasNext()) {
+            shard.add(trees.next());
+        }
+        numTrees += shard.size();
+        return shard;
+    }
+
+    /**
+     * Adds a shard's counts, under global label ids, to the counts so far.
+     */
+    private void merge(Shard shard) {
+        int[] labelIds = new int[shard.labels.size()];
+        for (int label = 0; label < labelIds.length; label++) {
+            labelIds[label] = labels.addAndGetIndex(shard.labels.get(label));
+        }
+        if (labels.size() > MAX_LABELS) throw new IllegalStateException("Too many labels to train on: " + labels.size());
+        for (int slot = 0; slot < shard.symbolCounts.keys.length; slot++) {
+            long count = shard.symbolCounts.counts[slot];
+            if (count != 0) symbolCounts.increment(labelIds[(int) shard.symbolCounts.keys[slot]], count);
+        }
+        for (int slot = 0; slot < shard.unaryCounts.keys.length; slot++) {
+            long count = shard.unaryCounts.counts[slot];
+            if (count == 0) continue;
+            long key = shard.unaryCounts.keys[slot];
+            unaryCounts.increment(unaryKey(labelIds[parentOf(key)], labelIds[leftOf(key)]), count);
+        }
+        for (int slot = 0; slot < shard.binaryCounts.keys.length; slot++) {
+            long count = shard.binaryCounts.counts[slot];
+            if (count == 0) continue;
+            long key = shard.binaryCounts.keys[slot];
+            binaryCounts.increment(binaryKey(labelIds[parentOf(key)], labelIds[leftOf(key)], labelIds[rightOf(key)]), count);
+        }
+        for (int label = shard.rootLabels.nextSetBit(0); label >= 0; label = shard.rootLabels.nextSetBit(label + 1)) {
+            rootLabels.add(shard.labels.get(label));
+        }
+
+        // Words new to the lexicon count their first tag as a type-tag, before any of the shard's tokens are added
+        for (int word = 0; word < shard.words.size(); word++) {
+            if (!lexicon.isKnown(shard.words.get(word))) {
+                lexicon.totalWordTypes += 1.0;
+                lexicon.typeTagCounter.incrementCount(shard.labels.get(shard.firstTags[word]), 1.0);
+            }
+        }
+        for (int slot = 0; slot < shard.taggingCounts.keys.length; slot++) {
+            double count = shard.taggingCounts.counts[slot];
+            if (count == 0) continue;
+            long key = shard.taggingCounts.keys[slot];
+            String word = shard.words.get((int) (key >>> 32));
+            String tag  = shard.labels.get((int) key);
+            lexicon.totalTokens += count;
+            lexicon.tagCounter.incrementCount(tag, count);
+            lexicon.wordCounter.incrementCount(word, count);
+            lexicon.wordToTagCounters.incrementCount(word, tag, count);
+        }
+    }
+
+    /**
+     * Builds the grammar and the lexicon's score vectors from the merged counts.
+     */
+    private void finish() {
+        lexicon.buildLogScores();
+
+        // Relative frequency estimates, as in Grammar(List)
+        List<PCFGParserTester.UnaryRule> unaryRules = new ArrayList<PCFGParserTester.UnaryRule>(unaryCounts.size);
+        for (int slot = 0; slot < unaryCounts.keys.length; slot++) {
+            if (unaryCounts.counts[slot] == 0) continue;
+            long key = unaryCounts.keys[slot];
+            PCFGParserTester.UnaryRule unaryRule = new PCFGParserTester.UnaryRule(labels.get(parentOf(key)), labels.get(leftOf(key)));
+            unaryRule.setScore((double) unaryCounts.counts[slot] / (double) symbolCounts.get(parentOf(key)));
+            unaryRules.add(unaryRule);
+        }
+        List<PCFGParserTester.BinaryRule> binaryRules = new ArrayList<PCFGParserTester.BinaryRule>(binaryCounts.size);
+        for (int slot = 0; slot < binaryCounts.keys.length; slot++) {
+            if (binaryCounts.counts[slot] == 0) continue;
+            long key = binaryCounts.keys[slot];
+            PCFGParserTester.BinaryRule binaryRule = new PCFGParserTester.BinaryRule(labels.get(parentOf(key)), labels.get(leftOf(key)), labels.get(rightOf(key)));
+            binaryRule.setScore((double) binaryCounts.counts[slot] / (double) symbolCounts.get(parentOf(key)));
+            binaryRules.add(binaryRule);
+        }
+        grammar = new PCFGParserTester.Grammar(unaryRules, binaryRules);
+    }
+
+    private static long unaryKey(int parent, int child) {
+        return binaryKey(parent, child, 0);
+    }
+
+    private static long binaryKey(int parent, int left, int right) {
+        return ((long) parent << 42) | ((long) left << 21) | right;
+    }
+
+    private static int parentOf(long key) {
+        return (int) (key >>> 42);
+    }
+
+    private static int leftOf(long key) {
+        return (int) (key >>> 21) & (MAX_LABELS - 1);
+    }
+
+    private static int rightOf(long key) {
+        return (int) key & (MAX_LABELS - 1);
+    }
+
+    /**
+     * A run of consecutive trees, and its tallies of them.
+     */
+    private static class Shard implements Callable<Shard> {
+        List<Tree<String>>                                   trees;
+        final PCFGParserTester.TreeAnnotations.MarkovContext context;
+
+        final Indexer<String> labels        = new Indexer<String>();
+        final Indexer<String> words         = new Indexer<String>();
+        final LongCounts      symbolCounts  = new LongCounts();   // by label, for the labels heading a rule
+        final LongCounts      unaryCounts   = new LongCounts();   // by unaryKey(parent, child)
+        final LongCounts      binaryCounts  = new LongCounts();   // by binaryKey(parent, left, right)
+        final LongCounts      taggingCounts = new LongCounts();   // by word << 32 | tag
+        final BitSet          rootLabels    = new BitSet();
+        int[]                 firstTags     = new int[1024];      // by word, the tag it had where first seen
+
+        Shard(List<Tree<String>> trees, PCFGParserTester.TreeAnnotations.MarkovContext context) {
+            this.trees = trees;
+            this.context = context;
+        }
+
+        public Shard call() {
+            for (Tree<String> tree : trees) {
+                Tree<String> annotatedTree = PCFGParserTester.TreeAnnotations.annotateTree(tree, context);
+                rootLabels.set(labels.addAndGetIndex(annotatedTree.getLabel()));
+                tallyTree(annotatedTree);
+            }
+            trees = null;   // only the counts are merged
+            return this;
+        }
+
+        /**
+         * Tallies rules as Grammar.tallyTree() does, and the words under the preterminals as the Lexicon does.
+         */
+        private void tallyTree(Tree<String> tree) {
+            if (tree.isLeaf()) return;
+            List<Tree<String>> children = tree.getChildren();
+            int parent = labels.addAndGetIndex(tree.getLabel());
+            if (tree.isPreTerminal()) {
+                tallyTagging(children.get(0).getLabel(), parent);
+                return;
+            }
+            if (children.size() == 1) {
+                symbolCounts.increment(parent, 1);
+                unaryCounts.increment(unaryKey(parent, labels.addAndGetIndex(children.get(0).getLabel())), 1);
+            } else if (children.size() == 2) {
+                symbolCounts.increment(parent, 1);
+                int left  = labels.addAndGetIndex(children.get(0).getLabel());
+                int right = labels.addAndGetIndex(children.get(1).getLabel());
+                binaryCounts.increment(binaryKey(parent, left, right), 1);
+            } else {
+                throw new RuntimeException("Attempted to construct a Grammar with an illegal tree (unbinarized?): " + tree);
+            }
+            if (labels.size() > MAX_LABELS) throw new IllegalStateException("Too many labels to train on: " + labels.size());
+            for (Tree<String> child : children) {
+                tallyTree(child);
+            }
+        }
+
+        private void tallyTagging(String word, int tag) {
+            int knownWords = words.size();
+            int wordId = words.addAndGetIndex(word);
+            if (wordId == knownWords) {
+                if (wordId == firstTags.length) firstTags = Arrays.copyOf(firstTags, 2 * firstTags.length);
+                firstTags[wordId] = tag;
+            }
+            taggingCounts.increment(((long) wordId << 32) | tag, 1);
+        }
+    }
+
+    /**
+     * Positive counts under long keys, in an open addressing table whose free slots are those with a count of 0.
+     * Callers iterate over the table directly, skipping the free slots.
+     */
+    static class LongCounts {
+        long[] keys   = new long[16];
+        long[] counts = new long[16];
+        int    size;
+
+        void increment(long key, long amount) {
+            int slot = find(keys, counts, key);
+            if (counts[slot] == 0) {
+                keys[slot] = key;
+                counts[slot] = amount;
+                if (++size * 2 > keys.length) grow();
+            } else {
+                counts[slot] += amount;
+            }
+        }
+
+        long get(long key) {
+            return counts[find(keys, counts, key)];
+        }
+
+        private void grow() {
+            long[] oldKeys = keys, oldCounts = counts;
+            keys   = new long[2 * oldKeys.length];
+            counts = new long[2 * oldKeys.length];
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldCounts[slot] == 0) continue;
+                int newSlot = find(keys, counts, oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                counts[newSlot] = oldCounts[slot];
+            }
+        }
+
+        /**
+         * The slot holding the key, or the free slot where it would go.
+         */
+        private static int find(long[] keys, long[] counts, long key) {
+            int mask = keys.length - 1;
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash >>> 32) & mask;
+            while (counts[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
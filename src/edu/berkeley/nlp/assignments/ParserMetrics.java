@@ -0,0 +1,182 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.util.Stopwatch;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters for a run of the parser: where the time goes, stage by stage, and how long sentences take as a
+ * function of their length.
+ *
+ * Parsers with metrics attached (CKYParser.setMetrics()) charge the nanoseconds of each stage of every parse to one of
+ * the stage totals and add their work to the counters.  The caller records each sentence's total latency, which is
+ * kept per bucket of LENGTH_BUCKET words so the summary can give percentiles for each bucket as well as overall.  A
+ * bucket keeps its most recent MAX_LATENCIES latencies, so that a long-running server's metrics stay bounded (and
+ * describe recent traffic), while a test run's are exact.  All methods may be called from several parser threads at
+ * once.
+ *
+ * @author Keith Stone
+ */
+public class ParserMetrics {
+    static final int LENGTH_BUCKET = 10;
+    static final int MAX_LATENCIES = 1 << 16;
+
+    // Stages
+    static final int ESTIMATE   = 0;
+    static final int CHART      = 1;
+    static final int BACKTRACE  = 2;
+    static final int NORMALIZE  = 3;
+    static final int UNANNOTATE = 4;
+    private static final String[] STAGE_NAMES = {"pruning / outside estimates", "chart fill", "backtrace", "normalize_structure", "unannotate"};
+
+    // Counters
+    static final int CELLS            = 0;
+    static final int RULES            = 1;
+    static final int PRUNED           = 2;
+    static final int FALLBACK_BEAM    = 3;
+    static final int FALLBACK_COARSE  = 4;
+    static final int FALLBACK_DEFAULT = 5;
+    private static final String[] COUNTER_NAMES = {"cells visited", "rules applied", "edges pruned",
+            "fallbacks to tighter beam", "fallbacks to coarse grammar", "fallbacks to default parse"};
+
+    final AtomicLongArray stageNanos = new AtomicLongArray(STAGE_NAMES.length);
+    final AtomicLongArray counters   = new AtomicLongArray(COUNTER_NAMES.length);
+    final Map<Integer, Latencies> latencies = new TreeMap<Integer, Latencies>();
+    final Stopwatch wallClock = new Stopwatch();
+
+    public void addTime(int stage, long nanos) {
+        stageNanos.addAndGet(stage, nanos);
+    }
+
+    public void count(int counter, long amount) {
+        counters.addAndGet(counter, amount);
+    }
+
+    public long getCount(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * The latencies of one length bucket: all of them, or once there are more than MAX_LATENCIES, the most recent.
+     */
+    private static class Latencies {
+        long[] nanos = new long[16];
+        int    size;
+        long   recorded;
+
+        void add(long latency) {
+            if (size == nanos.length && size < MAX_LATENCIES) {
+                nanos = Arrays.copyOf(nanos, Math.min(2 * size, MAX_LATENCIES));
+            }
+            if (size < nanos.length) {
+                nanos[size++] = latency;
+            } else {
+                nanos[(int) (recorded % MAX_LATENCIES)] = latency;
+            }
+            recorded++;
+        }
+    }
+
+    /**
+     * Records the latency of one sentence of the given length.
+     */
+    public synchronized void recordSentence(int length, long nanos) {
+        int bucket = (Math.max(length, 1) - 1) / LENGTH_BUCKET;
+        Latencies bucketLatencies = latencies.get(bucket);
+        if (bucketLatencies == null) {
+            bucketLatencies = new Latencies();
+            latencies.put(bucket, bucketLatencies);
+        }
+        bucketLatencies.add(nanos);
+    }
+
+    /**
+     * Nearest-rank percentiles (each in [0, 1]) of the latencies kept over all lengths, in nanoseconds; 0 if none.
+     */
+    public synchronized long[] getLatencyPercentiles(double... percentiles) {
+        long[] sorted = allLatencies();
+        Arrays.sort(sorted);
+        long[] values = new long[percentiles.length];
+        for (int k = 0; k < percentiles.length && sorted.length > 0; k++) {
+            values[k] = percentile(sorted, percentiles[k]);
+        }
+        return values;
+    }
+
+    private long[] allLatencies() {
+        int total = 0;
+        for (Latencies bucketLatencies : latencies.values()) {
+            total += bucketLatencies.size;
+        }
+        long[] all = new long[total];
+        int k = 0;
+        for (Latencies bucketLatencies : latencies.values()) {
+            System.arraycopy(bucketLatencies.nanos, 0, all, k, bucketLatencies.size);
+            k += bucketLatencies.size;
+        }
+        return all;
+    }
+
+    /**
+     * Stops the wall clock, which started when the metrics were created.
+     */
+    public void finish() {
+        wallClock.stop();
+    }
+
+    public synchronized void printSummary(PrintStream out) {
+        long[] all = allLatencies();
+        double seconds = wallClock.getTotalElapsedTime();
+        out.println(String.format("Parsed %d sentences in %.2fs (%.2f sentences/s)", all.length, seconds,
+                all.length / seconds));
+        out.println("Latency  " + describe(all));
+        for (Map.Entry<Integer, Latencies> entry : latencies.entrySet()) {
+            int bucket = entry.getKey();
+            Latencies bucketLatencies = entry.getValue();
+            out.println(String.format("  length %3d-%-3d %s", bucket * LENGTH_BUCKET + 1, (bucket + 1) * LENGTH_BUCKET,
+                    describe(Arrays.copyOf(bucketLatencies.nanos, bucketLatencies.size))));
+        }
+
+        long totalStageNanos = 0;
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            totalStageNanos += stageNanos.get(stage);
+        }
+        if (totalStageNanos > 0) {
+            out.println("Stages (summed over parser threads):");
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                long nanos = stageNanos.get(stage);
+                out.println(String.format("  %-28s %10.1fms %5.1f%%", STAGE_NAMES[stage], nanos / 1e6, 100.0 * nanos / totalStageNanos));
+            }
+            out.println("Counters:");
+            for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+                out.println(String.format("  %-28s %12d", COUNTER_NAMES[counter], counters.get(counter)));
+            }
+        }
+    }
+
+    /**
+     * Count, mean and percentiles of a set of latencies, in milliseconds.
+     */
+    private static String describe(long[] nanos) {
+        long[] sorted = nanos.clone();
+        long total = 0;
+        for (long latency : sorted) {
+            total += latency;
+        }
+        Arrays.sort(sorted);
+        if (sorted.length == 0) return "n=0";
+        return String.format("n=%-5d mean %8.1fms  p50 %8.1fms  p95 %8.1fms  p99 %8.1fms  max %8.1fms", sorted.length,
+                total / 1e6 / sorted.length, percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.95) / 1e6,
+                percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted, non-empty array.
+     */
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,202 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.util.Counter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A trained parser in a compact binary file, so it can be loaded without rereading and reannotating the treebank.
+ *
+ * The file holds the compiled grammar (interned state labels, binary and closed unary rule arrays and the unary
+ * closure paths), the root states and the lexicon's counts, followed optionally by the same three parts for the coarse
+ * grammar of a CoarseToFinePruner.  Everything is written big-endian with DataOutputStream and read back from a single
+ * memory-mapped buffer; the lexicon's log score vectors and the grammar's rule groupings are rebuilt on load.
+ *
+ * @author Keith Stone
+ */
+public class ParserModel {
+    private static final int MAGIC   = 0x50434647; // "PCFG"
+    private static final int VERSION = 1;
+
+    CompiledGrammar          grammar;
+    int[]                    rootStates;
+    PCFGParserTester.Lexicon lexicon;
+
+    // Only present if the parser was saved with coarse-to-fine pruning
+    CompiledGrammar          coarseGrammar;
+    int[]                    coarseRootStates;
+    PCFGParserTester.Lexicon coarseLexicon;
+
+    public static void save(CKYParser parser, String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            parser.grammar.write(out);
+            writeInts(out, parser.rootStates);
+            writeLexicon(out, parser.lexicon);
+
+            CoarseToFinePruner pruner = parser instanceof BottomUpCKYParser ? ((BottomUpCKYParser) parser).pruner : null;
+            out.writeBoolean(pruner != null);
+            if (pruner != null) {
+                pruner.grammar.write(out);
+                writeInts(out, pruner.rootStates);
+                writeLexicon(out, pruner.lexicon);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static ParserModel load(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        MappedByteBuffer in;
+        try {
+            FileChannel channel = file.getChannel();
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        if (in.getInt() != MAGIC) {
+            throw new IOException(path + " is not a parser model");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException(path + " has model version " + version + ", expected " + VERSION);
+        }
+
+        ParserModel model = new ParserModel();
+        model.grammar    = new CompiledGrammar(in);
+        model.rootStates = readInts(in);
+        model.lexicon    = readLexicon(in);
+        if (in.get() != 0) {
+            model.coarseGrammar    = new CompiledGrammar(in);
+            model.coarseRootStates = readInts(in);
+            model.coarseLexicon    = readLexicon(in);
+        }
+        return model;
+    }
+
+    public boolean hasCoarseGrammar() {
+        return coarseGrammar != null;
+    }
+
+    /**
+     * Word and tag strings are written once; the per-word tag counts refer to tags by their index in the (sorted) tag
+     * indexer.
+     */
+    private static void writeLexicon(DataOutputStream out, PCFGParserTester.Lexicon lexicon) throws IOException {
+        out.writeDouble(lexicon.totalTokens);
+        out.writeDouble(lexicon.totalWordTypes);
+        String[] tags = lexicon.tagIndexer.toArray(new String[lexicon.tagIndexer.size()]);
+        writeStrings(out, tags);
+        writeTagCounts(out, lexicon.tagCounter, lexicon);
+        writeTagCounts(out, lexicon.typeTagCounter, lexicon);
+
+        out.writeInt(lexicon.wordCounter.size());
+        for (String word : lexicon.wordCounter.keySet()) {
+            writeString(out, word);
+            out.writeDouble(lexicon.wordCounter.getCount(word));
+            writeTagCounts(out, lexicon.wordToTagCounters.getCounter(word), lexicon);
+        }
+    }
+
+    private static void writeTagCounts(DataOutputStream out, Counter<String> counts, PCFGParserTester.Lexicon lexicon) throws IOException {
+        out.writeInt(counts.size());
+        for (String tag : counts.keySet()) {
+            out.writeInt(lexicon.tagIndexer.indexOf(tag));
+            out.writeDouble(counts.getCount(tag));
+        }
+    }
+
+    private static PCFGParserTester.Lexicon readLexicon(ByteBuffer in) {
+        PCFGParserTester.Lexicon lexicon = new PCFGParserTester.Lexicon();
+        lexicon.totalTokens    = in.getDouble();
+        lexicon.totalWordTypes = in.getDouble();
+        String[] tags = readStrings(in);
+        readTagCounts(in, lexicon.tagCounter, tags);
+        readTagCounts(in, lexicon.typeTagCounter, tags);
+
+        int numWords = in.getInt();
+        for (int w = 0; w < numWords; w++) {
+            String word = readString(in);
+            lexicon.wordCounter.setCount(word, in.getDouble());
+            int numTags = in.getInt();
+            for (int t = 0; t < numTags; t++) {
+                lexicon.wordToTagCounters.setCount(word, tags[in.getInt()], in.getDouble());
+            }
+        }
+        lexicon.buildLogScores();
+        return lexicon;
+    }
+
+    private static void readTagCounts(ByteBuffer in, Counter<String> counts, String[] tags) {
+        int size = in.getInt();
+        for (int t = 0; t < size; t++) {
+            counts.setCount(tags[in.getInt()], in.getDouble());
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    static String[] readStrings(ByteBuffer in) {
+        String[] strings = new String[in.getInt()];
+        for (int k = 0; k < strings.length; k++) {
+            strings[k] = readString(in);
+        }
+        return strings;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * values.length);
+        return values;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(ByteBuffer in) {
+        double[] values = new double[in.getInt()];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        return values;
+    }
+}
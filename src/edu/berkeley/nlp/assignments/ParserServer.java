@@ -0,0 +1,272 @@
+package edu.berkeley.nlp.assignments;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a trained parser in memory and parses sentences on request, so that clients pay for training (or loading a
+ * model) once rather than per process.
+ *
+ * The protocol is line oriented.  Each request line is one sentence, already tokenized, with tokens separated by
+ * whitespace; the response is a line holding its parse in Penn Treebank brackets (rendered by Trees.PennTreeRenderer
+ * and joined onto one line).  Responses on a connection come back in request order, so a client may send many
+ * sentences before reading any.  An empty line gets an empty response, a line "#stats" gets the server's statistics
+ * as of when the line was read, and a sentence which cannot be parsed gets "#error" and the reason.
+ *
+ * Requests from all connections go to one shared queue in front of a fixed set of parser threads.  Each thread takes
+ * the queued requests in batches, in arrival order: as many as are waiting, up to MAX_BATCH and at most its share of
+ * the queue, so that a burst is handed off in a few queue operations but does not pile up behind one busy thread.  A
+ * connection's reader keeps queueing while earlier sentences are being parsed, but both the shared queue (QUEUE_SIZE
+ * requests) and a connection's responses not yet written (QUEUE_SIZE) are bounded: when either is full the reader
+ * waits, stops reading its socket, and the client is held back by TCP rather than the server running out of memory.
+ *
+ * The server counts requests, the current queue depth, throughput, and for CKY parsers how often a sentence over its
+ * budget (CKYParser.setBudget()) fell back to a cheaper parse.  The latency of each request, from arrival to parse
+ * completed, goes into a ParserMetrics, which "#stats" reports as percentiles.
+ *
+ * @author Keith Stone
+ */
+public class ParserServer {
+    static final String STATS_COMMAND = "#stats";
+    static final String ERROR_PREFIX  = "#error";
+    static final int    QUEUE_SIZE    = 1024;
+    static final int    MAX_BATCH     = 16;
+
+    final PCFGParserTester.Parser         parser;
+    final BlockingQueue<FutureTask<String>> requests = new ArrayBlockingQueue<FutureTask<String>>(QUEUE_SIZE);
+    final Thread[]                        workers;
+    final long                            startTime = System.nanoTime();
+
+    final AtomicLong    received  = new AtomicLong();
+    final AtomicLong    completed = new AtomicLong();
+    final AtomicLong    failed    = new AtomicLong();
+    final AtomicLong    active    = new AtomicLong();
+    final ParserMetrics metrics   = new ParserMetrics();
+
+    public ParserServer(PCFGParserTester.Parser parser, int threads) {
+        this.parser = parser;
+        if (parser instanceof CKYParser) ((CKYParser) parser).setMetrics(metrics);
+        workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "parser-server-worker-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+    }
+
+    /**
+     * A parser thread: takes a batch of queued requests and parses them in turn, until interrupted by shutdown().
+     */
+    private void work() {
+        List<FutureTask<String>> batch = new ArrayList<FutureTask<String>>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(requests.take());
+                int share = requests.size() / workers.length;
+                if (share > 0) requests.drainTo(batch, Math.min(share, MAX_BATCH - 1));
+                for (FutureTask<String> request : batch) {
+                    request.run();   // nothing, if its connection has cancelled it
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shut down
+        }
+    }
+
+    /**
+     * Serves one connection (or stdin and stdout) until its input ends, then waits for its last responses.  If writing
+     * a response fails (the client has gone, or stopped reading), the connection is abandoned: its input is closed,
+     * its reader stops, and the requests it queued which no parser thread has started are cancelled.
+     */
+    public void serve(final InputStream input, OutputStream output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        final Writer out = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        final BlockingQueue<Future<String>> responses = new ArrayBlockingQueue<Future<String>>(QUEUE_SIZE);
+        final Future<String> endOfInput = completedFuture(null);
+        final Thread reader = Thread.currentThread();
+        final AtomicBoolean writerFailed = new AtomicBoolean();
+
+        // Responses are written in request order by their own thread, flushing whenever none is ready
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Future<String> response = responses.poll();
+                        if (response == null) {
+                            out.flush();
+                            response = responses.take();
+                        }
+                        if (response == endOfInput) break;
+                        String text;
+                        try {
+                            text = response.get();
+                        } catch (ExecutionException e) {
+                            failed.incrementAndGet();
+                            text = ERROR_PREFIX + " " + e.getCause();
+                        }
+                        out.write(text);
+                        out.write('\n');
+                    }
+                    out.flush();
+                } catch (InterruptedException e) {
+                    // The reader gave up on this connection, and cancels what is left
+                } catch (Exception e) {
+                    System.err.println("Response writer failed: " + e);
+                    // Wake the reader, whether it is reading or waiting to queue, so that it stops
+                    writerFailed.set(true);
+                    reader.interrupt();
+                    try {
+                        input.close();
+                    } catch (IOException closeFailure) {
+                        // Already gone
+                    }
+                }
+            }
+        }, "parser-server-writer");
+        writer.start();
+
+        // put() waits while this connection's responses or the shared queue are full, which stops reading the input
+        boolean interrupted = false;
+        IOException readFailure = null;
+        try {
+            String line;
+            while (!writerFailed.get() && (line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.equals(STATS_COMMAND)) {
+                    responses.put(completedFuture(getStats()));
+                } else if (line.length() == 0) {
+                    responses.put(completedFuture(""));
+                } else {
+                    responses.put(submit(Arrays.asList(line.split("\\s+"))));
+                }
+            }
+            if (!writerFailed.get()) responses.put(endOfInput);
+        } catch (InterruptedException e) {
+            interrupted = !writerFailed.get();
+        } catch (IOException e) {
+            if (!writerFailed.get()) readFailure = e;
+        }
+        if (interrupted || readFailure != null) writer.interrupt();
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                if (!writerFailed.get()) {
+                    interrupted = true;
+                    writer.interrupt();
+                }
+            }
+        }
+        if (writerFailed.get()) Thread.interrupted();   // the writer's wake-up call, not a request to stop
+        if (interrupted) Thread.currentThread().interrupt();
+
+        // Anything still queued will never be written
+        for (Future<String> response : responses) {
+            response.cancel(false);
+        }
+        if (readFailure != null) throw readFailure;
+    }
+
+    /**
+     * Accepts connections on a local port forever, serving each on its own thread.
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("Listening on " + serverSocket.getLocalSocketAddress());
+        while (true) {
+            final Socket socket = serverSocket.accept();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("Connection from " + socket.getRemoteSocketAddress() + " failed: " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Already gone
+                        }
+                        System.err.println(getStats());
+                    }
+                }
+            }, "parser-server-" + socket.getRemoteSocketAddress()).start();
+        }
+    }
+
+    /**
+     * Queues a sentence for the parser threads, waiting while the queue is full.
+     */
+    private Future<String> submit(final List<String> sentence) throws InterruptedException {
+        final long arrival = System.nanoTime();
+        received.incrementAndGet();
+        FutureTask<String> request = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                // An Error (out of memory, say) still completes the request, and reaches the client as a failure
+                active.incrementAndGet();
+                try {
+                    Tree<String> parse = parser.getBestParse(sentence);
+                    return Trees.PennTreeRenderer.render(parse).trim().replaceAll("\\s*\n\\s*", " ");
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    return ERROR_PREFIX + " " + e;
+                } finally {
+                    metrics.recordSentence(sentence.size(), System.nanoTime() - arrival);
+                    completed.incrementAndGet();
+                    active.decrementAndGet();
+                }
+            }
+        });
+        requests.put(request);
+        return request;
+    }
+
+    private static Future<String> completedFuture(String value) {
+        FutureTask<String> future = new FutureTask<String>(new Runnable() {
+            public void run() {
+            }
+        }, value);
+        future.run();
+        return future;
+    }
+
+    /**
+     * One line: requests received, completed, failed, waiting in the queue, being parsed, and cancelled (queued by a
+     * connection which was then abandoned, see serve()), throughput since the server started, the median, 95th and
+     * 99th percentile and maximum request latency (over the most recent ParserMetrics.MAX_LATENCIES requests of each
+     * length bucket), and the number of fallbacks of each kind.
+     */
+    public String getStats() {
+        long done = completed.get();
+        long parsing = active.get();
+        int queued = requests.size();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long[] latency = metrics.getLatencyPercentiles(0.50, 0.95, 0.99, 1.0);
+        return String.format("#stats received %d completed %d failed %d queued %d active %d cancelled %d throughput %.2f sent/s latency p50 %.1fms p95 %.1fms p99 %.1fms max %.1fms fallbacks beam %d coarse %d default %d",
+                received.get(), done, failed.get(), queued, parsing,
+                Math.max(0, received.get() - done - parsing - queued), done / seconds,
+                latency[0] / 1e6, latency[1] / 1e6, latency[2] / 1e6, latency[3] / 1e6,
+                metrics.getCount(ParserMetrics.FALLBACK_BEAM), metrics.getCount(ParserMetrics.FALLBACK_COARSE),
+                metrics.getCount(ParserMetrics.FALLBACK_DEFAULT));
+    }
+
+    public void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
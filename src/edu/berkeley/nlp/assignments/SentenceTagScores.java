@@ -0,0 +1,46 @@
+package edu.berkeley.nlp.assignments;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The lexicon's scores for the words of one sentence, looked up once per sentence so that building a leaf cell reads
+ * arrays instead of hashing the word (and, for unknown words, finding its signature) again for every rule.
+ *
+ * scores[i] is the log score vector of word i indexed by lexicon tag, i.e. row i of a [position][tag] matrix; rows are
+ * the lexicon's own precomputed vectors rather than copies.  states[i] lists the grammar states (in increasing order)
+ * whose tag has nonzero probability for word i, which is all a leaf cell needs to visit.
+ *
+ * @author Keith Stone
+ */
+public class SentenceTagScores {
+    final double[][] scores;
+    final int[][]    states;
+
+    /**
+     * @param lexiconTags lexicon tag index of each grammar state, -1 for states which never tag a word
+     */
+    public SentenceTagScores(List<String> sentence, PCFGParserTester.Lexicon lexicon, int[] lexiconTags) {
+        int n = sentence.size();
+        scores = new double[n][];
+        states = new int[n][];
+        int[] buffer = new int[lexiconTags.length];
+        for (int i = 0; i < n; i++) {
+            double[] logScores = lexicon.getLogScores(sentence.get(i));
+            int count = 0;
+            for (int state = 0; state < lexiconTags.length; state++) {
+                int tag = lexiconTags[state];
+                if (tag >= 0 && logScores[tag] > Double.NEGATIVE_INFINITY) buffer[count++] = state;
+            }
+            scores[i] = logScores;
+            states[i] = Arrays.copyOf(buffer, count);
+        }
+    }
+
+    /**
+     * Log score of grammar state tagging word i, given the state's lexicon tag (-1 for none).
+     */
+    double score(int i, int tag) {
+        return tag < 0 ? Double.NEGATIVE_INFINITY : scores[i][tag];
+    }
+}
@@ -0,0 +1,34 @@
+package edu.berkeley.nlp.assignments;
+
+/**
+ * How a CKYParser (or one of its subclasses) trains its grammar, passed to its training constructor.  A parser trained
+ * with the default options is exactly the parser trained without any.
+ *
+ * @author Keith Stone
+ */
+public class TrainingOptions {
+    int    threads           = Runtime.getRuntime().availableProcessors();
+    double minimizeTolerance = Double.NaN;
+
+    /**
+     * Annotates and counts the training trees on the given number of ParallelTrainer threads; all processors by
+     * default.  The trained grammar does not depend on it.
+     */
+    public TrainingOptions setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Merges equivalent states of the trained grammar with a GrammarMinimizer of the given tolerance (0 for exact
+     * equivalence) before compiling it; NaN, the default, leaves the grammar as trained.
+     */
+    public TrainingOptions setMinimizeTolerance(double tolerance) {
+        minimizeTolerance = tolerance;
+        return this;
+    }
+
+    boolean minimizes() {
+        return !Double.isNaN(minimizeTolerance);
+    }
+}
@@ -5,73 +5,194 @@ import edu.berkeley.nlp.ling.Tree;
 import java.util.*;
 
 /**
+ * Dense CKY chart.  Each span (i, j) owns primitive score and backpointer arrays indexed by integer state id, so
+ * probing a (span, state) pair is an array read rather than a chain of map lookups.  Cell arrays are opened the first
+ * time a span is touched, on buffers from a ChartArena which the parser reuses for sentence after sentence.
+ *
+ * Backpointers are rule ids in the CompiledGrammar (binary rules together with their split point, closed unary rules
+ * on their own).  The chart also carries the lexicon's scores for the sentence, which its leaf cells are built from.
+ *
+ * A parser which completes each cell before reading it (BottomUpCKYParser) also records, with markPresent(), the
+ * bitset of states whose unary layer score in the cell is finite, so combining two cells can skip absent children
+ * with one bit test.  The top-down parser only scores what it probes and leaves every cell's bitset empty.
+ *
  * @author Keith Stone
  */
 public class TreeCache {
-    Map<Integer, Map<Integer, Map<String, CacheStore>>> cache;
-
-    public TreeCache(List<String> sentence, PCFGParserTester.Grammar grammar) {
-        int n = sentence.size();
-        cache = new HashMap<Integer, Map<Integer, Map<String, CacheStore>>>(n);
-        for (int i = 0; i < n; i++) {
-            cache.put(i, new HashMap<Integer, Map<String, CacheStore>>(n));
-            for (int j = i; j < n; j++) {
-                cache.get(i).put(j, new HashMap<String, CacheStore>(grammar.getStates().size()));
-                //for (String tag : grammar.getStates()) cache.get(i).get(j).put(tag, new CacheStore());
-            }
+    static final int NO_RULE = -1;
+
+    CompiledGrammar   grammar;
+    int               length;
+    SentenceTagScores tags;
+    long              rulesApplied;   // counted by the top-down parser, for ParserMetrics
+    long              deadline;       // System.nanoTime() past which the parse is abandoned, or 0 for none
+
+    double[][] unaryScores;
+    double[][] binaryScores;
+    int[][]    unaryRules;
+    int[][]    binaryRules;
+    short[][]  splits;
+    long[][]   present;
+
+    ChartArena arena;
+
+    /**
+     * A chart with buffers of its own.
+     */
+    public TreeCache(List<String> sentence, CompiledGrammar grammar, SentenceTagScores tags) {
+        this(sentence, grammar, tags, new ChartArena(grammar.numStates()));
+    }
+
+    /**
+     * A chart on the buffers of the given arena, which it uses until the arena's next chart is started.
+     */
+    public TreeCache(List<String> sentence, CompiledGrammar grammar, SentenceTagScores tags, ChartArena arena) {
+        this.grammar = grammar;
+        this.length  = sentence.size();
+        this.tags    = tags;
+        this.arena   = arena;
+
+        arena.reset(length);
+        unaryScores  = arena.unaryScores;
+        binaryScores = arena.binaryScores;
+        unaryRules   = arena.unaryRules;
+        binaryRules  = arena.binaryRules;
+        splits       = arena.splits;
+        present      = arena.present;
+    }
+
+    int cell(int i, int j) {
+        return i * length + j;
+    }
+
+    /**
+     * Abandons the parse filling this chart if its deadline has passed.
+     */
+    void checkDeadline() {
+        CKYParser.checkDeadline(deadline);
+    }
+
+    /**
+     * Allocates the cell for span (i, j) with every state scored as initialScore and no backpointers, and returns its
+     * index.  Used by parsers which fill the whole chart bottom-up instead of probing it lazily.
+     */
+    int openCell(int i, int j, double initialScore) {
+        int c = ensureCell(i, j);
+        Arrays.fill(unaryScores[c], initialScore);
+        Arrays.fill(binaryScores[c], initialScore);
+        return c;
+    }
+
+    /**
+     * Number of cells which have been allocated, i.e. visited by the parser.
+     */
+    int openCells() {
+        int count = 0;
+        for (int c = 0; c < length * length; c++) {
+            if (unaryScores[c] != null) count++;
+        }
+        return count;
+    }
+
+    private int ensureCell(int i, int j) {
+        int c = cell(i, j);
+        if (unaryScores[c] == null) {
+            arena.open(c, i, j);
+            // NaN marks a (span, state) pair which has not been scored yet
+            Arrays.fill(unaryScores[c], Double.NaN);
+            Arrays.fill(binaryScores[c], Double.NaN);
+            Arrays.fill(unaryRules[c], NO_RULE);
+            Arrays.fill(binaryRules[c], NO_RULE);
+            Arrays.fill(present[c], 0L);
         }
+        return c;
     }
 
-    public Tree<String> buildBinaryTree(List<String> sentence, String rootTag) {
-        return buildBinaryTree(0, sentence.size() - 1, rootTag, sentence);
+    /**
+     * Records which states have a finite unary layer score in cell c, which must be complete.
+     */
+    void markPresent(int c) {
+        double[] scores = unaryScores[c];
+        long[]   bits   = present[c];
+        Arrays.fill(bits, 0L);
+        for (int state = 0; state < scores.length; state++) {
+            if (scores[state] > Double.NEGATIVE_INFINITY) bits[state >>> 6] |= 1L << state;
+        }
+    }
+
+    public boolean hasUnaryScore(int i, int j, int state) {
+        double[] scores = unaryScores[cell(i, j)];
+        return scores != null && !Double.isNaN(scores[state]);
+    }
+
+    public boolean hasBinaryScore(int i, int j, int state) {
+        double[] scores = binaryScores[cell(i, j)];
+        return scores != null && !Double.isNaN(scores[state]);
+    }
+
+    public double getUnaryScore(int i, int j, int state) {
+        return unaryScores[cell(i, j)][state];
+    }
+
+    public double getBinaryScore(int i, int j, int state) {
+        return binaryScores[cell(i, j)][state];
     }
 
-    public Tree<String> buildUnaryTree(List<String> sentence, String rootTag) {
-        return buildUnaryTree(0, sentence.size() - 1, rootTag, sentence);
+    public void setUnary(int i, int j, int state, double score, int rule) {
+        int c = ensureCell(i, j);
+        unaryScores[c][state] = score;
+        unaryRules[c][state]  = rule;
     }
 
-    private Tree<String> buildBinaryTree(int i, int j, String tag, List<String> sentence) {
-        CacheStore cs = getCache(i, j, tag);
-        if (cs == null) return null;
+    public void setBinary(int i, int j, int state, double score, int rule, int split) {
+        int c = ensureCell(i, j);
+        binaryScores[c][state] = score;
+        binaryRules[c][state]  = rule;
+        splits[c][state]       = (short) split;
+    }
+
+    public Tree<String> buildBinaryTree(List<String> sentence, int rootState) {
+        return buildBinaryTree(0, sentence.size() - 1, rootState, sentence);
+    }
+
+    public Tree<String> buildUnaryTree(List<String> sentence, int rootState) {
+        return buildUnaryTree(0, sentence.size() - 1, rootState, sentence);
+    }
 
-        PCFGParserTester.BinaryRule rule = cs.getBinaryRule();
-        int s = cs.getSplitIndex();
-        if (rule == null) return null;
+    private Tree<String> buildBinaryTree(int i, int j, int state, List<String> sentence) {
+        int c = cell(i, j);
+        if (binaryRules[c] == null) return null;
 
-        Tree<String> leftTree  = buildUnaryTree(i, s - 1, rule.getLeftChild(), sentence);
-        Tree<String> rightTree = buildUnaryTree(s, j, rule.getRightChild(), sentence);
+        int rule = binaryRules[c][state];
+        if (rule == NO_RULE) return null;
+        int s = splits[c][state];
+
+        Tree<String> leftTree  = buildUnaryTree(i, s - 1, grammar.binaryLeft[rule], sentence);
+        Tree<String> rightTree = buildUnaryTree(s, j, grammar.binaryRight[rule], sentence);
         List<Tree<String>> children = new ArrayList<Tree<String>>();
         children.add(leftTree);
         children.add(rightTree);
-        Tree<String> tree = new Tree<String>(rule.getParent(), children);
+        Tree<String> tree = new Tree<String>(grammar.getLabel(state), children);
         return tree;
     }
 
-    private Tree<String> buildUnaryTree(int i, int j, String tag, List<String> sentence) {
-        CacheStore cs = getCache(i, j, tag);
-        if (cs == null) return null;
+    private Tree<String> buildUnaryTree(int i, int j, int state, List<String> sentence) {
+        int c = cell(i, j);
+        if (unaryRules[c] == null) return null;
 
-        PCFGParserTester.UnaryRule rule = cs.getUnaryRule();
-        if (rule == null) return null;
+        int rule = unaryRules[c][state];
+        if (rule == NO_RULE) return null;
+        int childState = grammar.unaryChild[rule];
 
         if (i == j) {
             Tree<String> word = new Tree<String>(sentence.get(i));
-            Tree<String> pos  = new Tree<String>(rule.getChild(),  Collections.singletonList(word));
-            Tree<String> tree = new Tree<String>(rule.getParent(), Collections.singletonList(pos));
+            Tree<String> pos  = new Tree<String>(grammar.getLabel(childState), Collections.singletonList(word));
+            Tree<String> tree = new Tree<String>(grammar.getLabel(state), Collections.singletonList(pos));
             return tree;
         } else {
-            Tree<String> child = buildBinaryTree(i, j, rule.getChild(), sentence);
-            Tree<String> tree = new Tree<String>(rule.getParent(), Collections.singletonList(child));
+            Tree<String> child = buildBinaryTree(i, j, childState, sentence);
+            Tree<String> tree = new Tree<String>(grammar.getLabel(state), Collections.singletonList(child));
             return tree;
         }
     }
-
-    public CacheStore getCache(int i, int j, String tag) {
-        CacheStore cache = this.cache.get(i).get(j).get(tag);
-        if (cache == null) {
-            cache = new CacheStore();
-            this.cache.get(i).get(j).put(tag, cache);
-        }
-        return cache;
-    }
 }
@@ -20,17 +20,26 @@ class NumberRangeFileFilter implements FileFilter {
     String name = pathname.getName();
     if (! name.endsWith(extension))
       return false;
-    int lastNumberIndex = getLastNumberIndex(name);
-    if (lastNumberIndex == -1)
+    int fileNum = getFileNumber(name);
+    if (fileNum == -1)
       return false;
-    int numEndLoc = lastNumberIndex+1;
-    int numStartLoc = getLastNonNumberIndex(name, lastNumberIndex)+1;
-    int fileNum = Integer.parseInt(name.substring(numStartLoc, numEndLoc));
     if (fileNum >= lowFileNum && fileNum <= highFileNum)
       return true;
     return false;
   }
 
+  /**
+   * The last number in the file name, or -1 if there is none.
+   */
+  int getFileNumber(String name) {
+    int lastNumberIndex = getLastNumberIndex(name);
+    if (lastNumberIndex == -1)
+      return -1;
+    int numEndLoc = lastNumberIndex+1;
+    int numStartLoc = getLastNonNumberIndex(name, lastNumberIndex)+1;
+    return Integer.parseInt(name.substring(numStartLoc, numEndLoc));
+  }
+
   private int getLastNonNumberIndex(String name, int lastNumberIndex) {
     int index = lastNumberIndex - 1;
     while (index >= 0 && Character.isDigit(name.charAt(index))) {
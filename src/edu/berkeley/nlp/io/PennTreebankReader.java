@@ -3,6 +3,7 @@ package edu.berkeley.nlp.io;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.ling.Trees;
 import edu.berkeley.nlp.util.ConcatenationIterator;
+import edu.berkeley.nlp.util.Interner;
 
 import java.util.*;
 import java.io.*;
@@ -19,6 +20,8 @@ public class PennTreebankReader {
     static class TreeIteratorIterator implements Iterator<Iterator<Tree<String>>> {
       Iterator<File> fileIterator;
       Iterator<Tree<String>> nextTreeIterator;
+      // Shared by the readers of this pass, which run one after another
+      Interner<String> labelInterner = new Interner<String>();
 
       public boolean hasNext() {
         return nextTreeIterator != null;
@@ -39,7 +42,7 @@ public class PennTreebankReader {
         while (nextTreeIterator == null && fileIterator.hasNext()) {
           try {
             File file = fileIterator.next();
-            nextTreeIterator = new Trees.PennTreeReader(new BufferedReader(new FileReader(file)));
+            nextTreeIterator = new Trees.PennTreeReader(new BufferedReader(new FileReader(file)), labelInterner);
           } catch (FileNotFoundException e) {
           }
         }
@@ -55,24 +58,54 @@ public class PennTreebankReader {
       return new ConcatenationIterator<Tree<String>>(new TreeIteratorIterator(files));
     }
 
+    int size = -1;
+
+    /**
+     * Counts the trees by matching parentheses rather than building them, and remembers the count.
+     */
     public int size() {
-      int size = 0;
-      Iterator i = iterator();
-      while (i.hasNext()) {
-        size++;
-        i.next();
+      if (size < 0) {
+        int count = 0;
+        for (File file : files) {
+          try {
+            count += countTrees(file);
+          } catch (IOException e) {
+            // Unreadable files contribute no trees, as in iterator()
+          }
+        }
+        size = count;
       }
       return size;
     }
 
-    private List<File> getFilesUnder(String path, FileFilter fileFilter) {
+    private static int countTrees(File file) throws IOException {
+      Reader in = new BufferedReader(new FileReader(file));
+      try {
+        int count = 0;
+        int depth = 0;
+        int ch;
+        while ((ch = in.read()) != -1) {
+          if (ch == '(') {
+            depth++;
+          } else if (ch == ')') {
+            depth--;
+            if (depth == 0) count++;
+          }
+        }
+        return count;
+      } finally {
+        in.close();
+      }
+    }
+
+    static List<File> getFilesUnder(String path, FileFilter fileFilter) {
       File root = new File(path);
       List<File> files = new ArrayList<File>();
       addFilesUnder(root, files, fileFilter);
       return files;
     }
 
-    private void addFilesUnder(File root, List<File> files, FileFilter fileFilter) {
+    private static void addFilesUnder(File root, List<File> files, FileFilter fileFilter) {
       if (! fileFilter.accept(root)) return;
       if (root.isFile()) {
         files.add(root);
@@ -97,7 +130,19 @@ public class PennTreebankReader {
     return readTrees(path, -1, Integer.MAX_VALUE);
   }
 
+  /**
+   * Reads the trees of the .mrg files under path numbered lowFileNum to highFileNumber.  If path holds a TreebankCache
+   * the trees come from it instead of the text files.
+   */
   public static Collection<Tree<String>> readTrees(String path, int lowFileNum, int highFileNumber) {
+    File cache = TreebankCache.findCache(path);
+    if (cache != null) {
+      try {
+        return new TreebankCache(cache).getTrees(lowFileNum, highFileNumber);
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading treebank cache " + cache, e);
+      }
+    }
     return new TreeCollection(path, lowFileNum, highFileNumber);
   }
 
@@ -0,0 +1,325 @@
+package edu.berkeley.nlp.io;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Pre-tokenized binary copy of a treebank directory, so trees can be read back without parsing the .mrg files.
+ *
+ * Every tree is stored as the preorder sequence of its nodes: one int label id (into a shared label table) and one
+ * short arity per node, a leaf being a node of arity 0.  A per-file index records each file's number (as understood by
+ * NumberRangeFileFilter) and its range of trees, so a file number range is served by picking out index entries.  Files
+ * keep the order in which PennTreebankReader found them, so the cache yields the same trees in the same order.
+ *
+ * Build the cache once with "java edu.berkeley.nlp.io.TreebankCache [path]"; PennTreebankReader then uses it whenever
+ * it finds CACHE_FILE in the directory it is asked to read.  The path defaults to ".", as PCFGParserTester's -path
+ * does, so a cache built from the directory the tester runs in serves a default run; a cache built for "wsj" only
+ * serves runs given "-path wsj".  The cache's header records the path, size and modification
+ * time of every .mrg file it was built from, and a cache which no longer matches the files under its directory (one
+ * changed, added or removed) is ignored, with a warning to rebuild it, rather than served.
+ *
+ * @author Keith Stone
+ */
+public class TreebankCache {
+  public static final String CACHE_FILE = "treebank.cache";
+
+  private static final int MAGIC = 0x54524545; // "TREE"
+  private static final int VERSION = 2;
+
+  String[] labels;
+  int[] fileNumbers;
+  int[] fileTreeStarts;   // trees of file f are [fileTreeStarts[f], fileTreeStarts[f + 1])
+  int[] treeNodeStarts;   // nodes of tree t are [treeNodeStarts[t], treeNodeStarts[t + 1])
+  IntBuffer nodeLabels;
+  ShortBuffer nodeArities;
+
+  /**
+   * The cache file for a treebank directory, or null if there is none or it is out of date with the .mrg files.
+   */
+  public static File findCache(String path) {
+    File cache = new File(path, CACHE_FILE);
+    if (!cache.isFile()) return null;
+    try {
+      if (isCurrent(cache, path)) return cache;
+    } catch (IOException e) {
+      // Unreadable, so out of date as well
+    }
+    System.err.println("Ignoring " + cache + ", which does not match the .mrg files under " + path +
+        "; rebuild it with \"java edu.berkeley.nlp.io.TreebankCache " + path + "\"");
+    return null;
+  }
+
+  /**
+   * Whether the header of a cache lists exactly the .mrg files now under path, with their current sizes and
+   * modification times.
+   */
+  private static boolean isCurrent(File cache, String path) throws IOException {
+    List<File> files = getSourceFiles(path);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != files.size()) return false;
+      for (File file : files) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        if (!new String(bytes, "UTF-8").equals(relativePath(path, file)) ||
+            in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<File> getSourceFiles(String path) {
+    NumberRangeFileFilter filter = new NumberRangeFileFilter(".mrg", -1, Integer.MAX_VALUE, true);
+    return PennTreebankReader.TreeCollection.getFilesUnder(path, filter);
+  }
+
+  private static String relativePath(String path, File file) {
+    URI root = new File(path).getAbsoluteFile().toURI().normalize();
+    return root.relativize(file.getAbsoluteFile().toURI().normalize()).getPath();
+  }
+
+  /**
+   * Maps a cache file written by build().
+   */
+  public TreebankCache(File cache) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(cache, "r");
+    MappedByteBuffer in;
+    try {
+      FileChannel channel = file.getChannel();
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      file.close();
+    }
+    if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+      throw new IOException(cache + " is not a treebank cache (or is from another version)");
+    }
+    // Skip the source files, which only findCache() reads
+    int numSources = in.getInt();
+    for (int s = 0; s < numSources; s++) {
+      int pathBytes = in.getInt();
+      in.position(in.position() + pathBytes + 2 * 8);
+    }
+    labels = new String[in.getInt()];
+    for (int l = 0; l < labels.length; l++) {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      // Each label is decoded once and shared by every node carrying it, as the text reader's are within a pass
+      labels[l] = new String(bytes, "UTF-8");
+    }
+    fileNumbers = readInts(in);
+    fileTreeStarts = readInts(in);
+    treeNodeStarts = readInts(in);
+    int numNodes = treeNodeStarts[treeNodeStarts.length - 1];
+    nodeLabels = slice(in, 4 * numNodes).asIntBuffer();
+    nodeArities = slice(in, 2 * numNodes).asShortBuffer();
+  }
+
+  /**
+   * The trees of all files numbered lowFileNum to highFileNum, decoded on demand.
+   */
+  public Collection<Tree<String>> getTrees(int lowFileNum, int highFileNum) {
+    final List<Integer> files = new ArrayList<Integer>();
+    int size = 0;
+    for (int f = 0; f < fileNumbers.length; f++) {
+      if (fileNumbers[f] >= lowFileNum && fileNumbers[f] <= highFileNum) {
+        files.add(f);
+        size += fileTreeStarts[f + 1] - fileTreeStarts[f];
+      }
+    }
+    final int numTrees = size;
+    return new AbstractCollection<Tree<String>>() {
+      public int size() {
+        return numTrees;
+      }
+
+      public Iterator<Tree<String>> iterator() {
+        return new Iterator<Tree<String>>() {
+          Iterator<Integer> fileIterator = files.iterator();
+          int tree, end;
+
+          public boolean hasNext() {
+            while (tree == end && fileIterator.hasNext()) {
+              int f = fileIterator.next();
+              tree = fileTreeStarts[f];
+              end = fileTreeStarts[f + 1];
+            }
+            return tree < end;
+          }
+
+          public Tree<String> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return decodeTree(tree++);
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  private Tree<String> decodeTree(int tree) {
+    int[] position = new int[] {treeNodeStarts[tree]};
+    return decodeNode(position);
+  }
+
+  /**
+   * Decodes the subtree rooted at node position[0], leaving position[0] just past it.  Children lists are shaped
+   * the way Trees.PennTreeReader builds them.
+   */
+  private Tree<String> decodeNode(int[] position) {
+    int node = position[0]++;
+    String label = labels[nodeLabels.get(node)];
+    int arity = nodeArities.get(node);
+    if (arity == 0) {
+      return new Tree<String>(label);
+    }
+    if (arity == 1 && nodeArities.get(position[0]) == 0) {
+      return new Tree<String>(label, Collections.singletonList(decodeNode(position)));
+    }
+    List<Tree<String>> children = new ArrayList<Tree<String>>(arity);
+    for (int c = 0; c < arity; c++) {
+      children.add(decodeNode(position));
+    }
+    return new Tree<String>(label, children);
+  }
+
+  /**
+   * Parses every .mrg file under path and writes the cache to path/CACHE_FILE.
+   */
+  public static void build(String path) throws IOException {
+    NumberRangeFileFilter filter = new NumberRangeFileFilter(".mrg", -1, Integer.MAX_VALUE, true);
+    List<File> files = getSourceFiles(path);
+    // Sizes and times as of before reading, so that a file changed while building leaves the cache out of date
+    long[] sizes = new long[files.size()];
+    long[] times = new long[files.size()];
+    for (int f = 0; f < files.size(); f++) {
+      sizes[f] = files.get(f).length();
+      times[f] = files.get(f).lastModified();
+    }
+
+    Indexer<String> labelIndexer = new Indexer<String>();
+    int[] fileNumbers = new int[files.size()];
+    int[] fileTreeStarts = new int[files.size() + 1];
+    List<Integer> treeNodeStarts = new ArrayList<Integer>();
+    IntArray nodeLabels = new IntArray();
+    IntArray nodeArities = new IntArray();
+    for (int f = 0; f < files.size(); f++) {
+      fileNumbers[f] = filter.getFileNumber(files.get(f).getName());
+      fileTreeStarts[f] = treeNodeStarts.size();
+      for (Tree<String> tree : PennTreebankReader.readTrees(files.get(f).getPath())) {
+        treeNodeStarts.add(nodeLabels.size);
+        encodeNode(tree, labelIndexer, nodeLabels, nodeArities);
+      }
+    }
+    fileTreeStarts[files.size()] = treeNodeStarts.size();
+    treeNodeStarts.add(nodeLabels.size);
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(path, CACHE_FILE)), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(files.size());
+      for (int f = 0; f < files.size(); f++) {
+        byte[] bytes = relativePath(path, files.get(f)).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(sizes[f]);
+        out.writeLong(times[f]);
+      }
+      out.writeInt(labelIndexer.size());
+      for (String label : labelIndexer) {
+        byte[] bytes = label.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      writeInts(out, fileNumbers, fileNumbers.length);
+      writeInts(out, fileTreeStarts, fileTreeStarts.length);
+      out.writeInt(treeNodeStarts.size());
+      for (int start : treeNodeStarts) {
+        out.writeInt(start);
+      }
+      for (int n = 0; n < nodeLabels.size; n++) {
+        out.writeInt(nodeLabels.values[n]);
+      }
+      for (int n = 0; n < nodeArities.size; n++) {
+        out.writeShort(nodeArities.values[n]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void encodeNode(Tree<String> tree, Indexer<String> labelIndexer, IntArray nodeLabels, IntArray nodeArities) {
+    int arity = tree.getChildren().size();
+    if (arity > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Node " + tree.getLabel() + " has too many children (" + arity + ") to cache");
+    }
+    nodeLabels.add(labelIndexer.addAndGetIndex(tree.getLabel()));
+    nodeArities.add(arity);
+    for (Tree<String> child : tree.getChildren()) {
+      encodeNode(child, labelIndexer, nodeLabels, nodeArities);
+    }
+  }
+
+  /**
+   * Grow-only int list, to avoid boxing millions of node fields while building.
+   */
+  private static class IntArray {
+    int[] values = new int[1024];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+      values[size++] = value;
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+    out.writeInt(length);
+    for (int i = 0; i < length; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer in) {
+    int[] values = new int[in.getInt()];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * values.length);
+    return values;
+  }
+
+  private static ByteBuffer slice(ByteBuffer in, int bytes) {
+    ByteBuffer view = in.slice();
+    view.limit(bytes);
+    in.position(in.position() + bytes);
+    return view;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 1) {
+      System.err.println("usage: java edu.berkeley.nlp.io.TreebankCache [treebank directory, . by default]");
+      System.exit(1);
+    }
+    String path = args.length == 1 ? args[0] : ".";
+    long start = System.currentTimeMillis();
+    build(path);
+    TreebankCache cache = new TreebankCache(new File(path, CACHE_FILE));
+    System.out.println("Cached " + (cache.treeNodeStarts.length - 1) + " trees (" + cache.nodeLabels.limit() + " nodes, " +
+        cache.labels.length + " labels) from " + cache.fileNumbers.length + " files in " + (System.currentTimeMillis() - start) + "ms");
+  }
+}
@@ -1,9 +1,9 @@
 package edu.berkeley.nlp.ling;
 
 import edu.berkeley.nlp.util.Filter;
+import edu.berkeley.nlp.util.Interner;
 
 import java.io.IOException;
-import java.io.PushbackReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
@@ -160,11 +160,24 @@ public class Trees {
     return new Tree<T>(newLabel,newChildren);
   }
   
+  /**
+   * Reads bracketed trees.  The whole input is buffered into a char[] up front and scanned in place; labels are
+   * interned, and children lists are allocated at their exact size.  The Interner is the reader's own unless one is
+   * passed in, so that the readers of one pass over a treebank can share theirs; it is not locked, so readers sharing
+   * one must be used from one thread at a time.  Nothing is interned globally: the labels and words are reclaimed
+   * along with the trees and readers which hold them.
+   */
   public static class PennTreeReader implements Iterator<Tree<String>> {
     public static String ROOT_LABEL = "ROOT";
 
-    PushbackReader in;
+    private final Interner<String> labelInterner;
+
+    char[] buffer;
+    int length;
+    int position;
     Tree<String> nextTree;
+    // Children parsed so far by the open nodes, innermost last
+    List<Tree<String>> childStack = new ArrayList<Tree<String>>();
 
     public boolean hasNext() {
       return (nextTree != null);
@@ -178,16 +191,12 @@ public class Trees {
     }
 
     private Tree<String> readRootTree() {
-      try {
-        readWhiteSpace();
-        if (!isLeftParen(peek())) return null;
-        return readTree(true);
-      } catch (IOException e) {
-        throw new RuntimeException("Error reading tree.");
-      }
+      readWhiteSpace();
+      if (!isLeftParen(peek())) return null;
+      return readTree(true);
     }
 
-    private Tree<String> readTree(boolean isRoot) throws IOException {
+    private Tree<String> readTree(boolean isRoot) {
       readLeftParen();
       String label = readLabel();
       if (label.length() == 0 && isRoot) label = ROOT_LABEL;
@@ -196,71 +205,72 @@ public class Trees {
       return new Tree<String>(label, children);
     }
 
-    private String readLabel() throws IOException {
+    private String readLabel() {
       readWhiteSpace();
       return readText();
     }
 
-    private String readText() throws IOException {
-      StringBuilder sb = new StringBuilder();
-      int ch = in.read();
-      while (!isWhiteSpace(ch) && !isLeftParen(ch) && !isRightParen(ch)) {
-        sb.append((char) ch);
-        ch = in.read();
+    private String readText() {
+      int start = position;
+      while (position < length) {
+        char ch = buffer[position];
+        if (isWhiteSpace(ch) || isLeftParen(ch) || isRightParen(ch)) break;
+        position++;
       }
-      in.unread(ch);
-//      System.out.println("Read text: ["+sb+"]");
-      return sb.toString().intern();
+      return labelInterner.intern(new String(buffer, start, position - start));
     }
 
-    private List<Tree<String>> readChildren() throws IOException {
+    private List<Tree<String>> readChildren() {
       readWhiteSpace();
       if (!isLeftParen(peek()))
         return Collections.singletonList(readLeaf());
       return readChildList();
     }
 
-    private int peek() throws IOException {
-      int ch = in.read();
-      in.unread(ch);
-      return ch;
+    private int peek() {
+      return position < length ? buffer[position] : -1;
     }
 
-    private Tree<String> readLeaf() throws IOException {
+    private Tree<String> readLeaf() {
       String label = readText();
       return new Tree<String>(label);
     }
 
-    private List<Tree<String>> readChildList() throws IOException {
-      List<Tree<String>> children = new ArrayList<Tree<String>>();
+    private List<Tree<String>> readChildList() {
+      int base = childStack.size();
       readWhiteSpace();
       while (!isRightParen(peek())) {
-        children.add(readTree(false));
+        if (peek() == -1) throw new RuntimeException("Format error reading tree.");
+        childStack.add(readTree(false));
         readWhiteSpace();
       }
+      List<Tree<String>> openChildren = childStack.subList(base, childStack.size());
+      List<Tree<String>> children = new ArrayList<Tree<String>>(openChildren.size());
+      children.addAll(openChildren);
+      openChildren.clear();
       return children;
     }
 
-    private void readLeftParen() throws IOException {
-//      System.out.println("Read left.");
+    private void readLeftParen() {
       readWhiteSpace();
-      int ch = in.read();
+      int ch = read();
       if (!isLeftParen(ch)) throw new RuntimeException("Format error reading tree with character: (" + Character.valueOf((char) ch) + ")");
     }
 
-    private void readRightParen() throws IOException {
-//      System.out.println("Read right.");
+    private void readRightParen() {
       readWhiteSpace();
-      int ch = in.read();
+      int ch = read();
       if (!isRightParen(ch)) throw new RuntimeException("Format error reading tree.");
     }
 
-    private void readWhiteSpace() throws IOException {
-      int ch = in.read();
-      while (isWhiteSpace(ch)) {
-        ch = in.read();
+    private int read() {
+      return position < length ? buffer[position++] : -1;
+    }
+
+    private void readWhiteSpace() {
+      while (position < length && isWhiteSpace(buffer[position])) {
+        position++;
       }
-      in.unread(ch);
     }
 
     private boolean isWhiteSpace(int ch) {
@@ -280,7 +290,22 @@ public class Trees {
     }
 
     public PennTreeReader(Reader in) {
-      this.in = new PushbackReader(in);
+      this(in, new Interner<String>());
+    }
+
+    public PennTreeReader(Reader in, Interner<String> labelInterner) {
+      this.labelInterner = labelInterner;
+      try {
+        buffer = new char[1 << 16];
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+          length += read;
+          if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        in.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading tree.");
+      }
       nextTree = readRootTree();
     }
   }
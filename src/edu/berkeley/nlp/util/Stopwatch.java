@@ -13,6 +13,7 @@ package edu.berkeley.nlp.util;
  * 		<br> double totalParsingTimeInSecs = parseWatch.getTotalElapsedTime();
  * 		<br> System.out.printf("Parsed %d sentences in %.3f seconds\n", corpus.size(), totalParsingTimeInSecs);
  *   </code></p>
+ * Ticks come from System.nanoTime(), so even short intervals are timed to well under a millisecond.
  * @author aria42
  *
  */
@@ -33,7 +34,7 @@ public class Stopwatch {
 		if (isRunning) {
 			return;
 		}
-		this.startTick = System.currentTimeMillis();
+		this.startTick = System.nanoTime();
 		this.isRunning = true;
 	}
 	
@@ -41,9 +42,9 @@ public class Stopwatch {
 		if (!isRunning) {
 			return;
 		}
-		this.stopTick = System.currentTimeMillis();
+		this.stopTick = System.nanoTime();
 		this.isRunning = false;
-		double elapsedTime = (this.stopTick-this.startTick) / 1000.0;
+		double elapsedTime = (this.stopTick-this.startTick) / 1e9;
 		this.totalElapsedTime += elapsedTime;
 		this.lastElapsedTime = elapsedTime;
 	}